@@ -5,6 +5,10 @@
 package com.needhamsoftware.unojar.ant;
 
 import com.needhamsoftware.unojar.Boot;
+import com.needhamsoftware.unojar.JarIndex;
+import com.needhamsoftware.unojar.Recorder;
+import com.needhamsoftware.unojar.ServiceIndex;
+import com.needhamsoftware.unojar.ZipDirectory;
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.FileScanner;
 import org.apache.tools.ant.Project;
@@ -21,9 +25,11 @@ import org.apache.tools.ant.types.resources.FileResource;
 import org.apache.tools.zip.ZipOutputStream;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.jar.Attributes;
 import java.util.jar.JarInputStream;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -49,6 +55,14 @@ public class UnoJarTask extends Jar {
   protected File mainManifest;
   protected String oneJarMainClass;
   protected boolean manifestSet;
+  protected boolean storeJars;
+  protected boolean index = true;
+  protected JarIndex jarIndex;
+  protected ServiceIndex serviceIndex;
+  protected File profile;
+  protected List<Recorder.Event> profileEvents;
+  protected List<ZipFileSet> libFilesets = new ArrayList<>();
+  protected List<ZipFileSet> binLibFilesets = new ArrayList<>();
 
   public static class Main extends Task {
     protected List filesets = new ArrayList();
@@ -164,6 +178,39 @@ public class UnoJarTask extends Jar {
     oneJarMainClass = main;
   }
 
+  /**
+   * Store nested jars without compression. This allows the JarClassLoader to read them in place when
+   * it maps the uno-jar into memory (-Duno-jar.mmap=true), rather than inflating each of them, at the
+   * cost of a larger uno-jar. Nested jars are compressed by default.
+   *
+   * @param store true to store nested jars without compression
+   */
+  public void setStoreJars(boolean store) {
+    storeJars = store;
+  }
+
+  /**
+   * An index of the entries in all nested jars is written to META-INF/uno-jar.idx by default. The
+   * JarClassLoader uses it to avoid reading the central directory of each nested jar. The service
+   * providers declared by the nested jars are also merged into META-INF/uno-jar.services.
+   *
+   * @param index false to omit the index
+   */
+  public void setIndex(boolean index) {
+    this.index = index;
+  }
+
+  /**
+   * A profile recorded by running the uno-jar with -Duno-jar.record=true. Lib jars are added to the
+   * uno-jar, and entries are added to main/main.jar, in the order the profile shows they were first used,
+   * followed by anything the profile does not mention in the usual order.
+   *
+   * @param profile the recorded profile
+   */
+  public void setProfile(File profile) {
+    this.profile = profile;
+  }
+
   public void setOneJarBoot(ZipFile jar) {
     log("setOneJarBoot(" + jar + ")", Project.MSG_VERBOSE);
     this.onejar = jar;
@@ -185,7 +232,12 @@ public class UnoJarTask extends Jar {
     while (iter.hasNext()) {
       ZipFileSet fileset = (ZipFileSet) iter.next();
       fileset.setPrefix("lib/");
-      super.addFileset(fileset);
+      if (profile != null) {
+        // Added in profile order by execute()
+        libFilesets.add(fileset);
+      } else {
+        super.addFileset(fileset);
+      }
     }
   }
 
@@ -213,6 +265,7 @@ public class UnoJarTask extends Jar {
     while (iter.hasNext()) {
       ZipFileSet fileset = (ZipFileSet) iter.next();
       fileset.setPrefix("binlib/");
+      binLibFilesets.add(fileset);
       super.addFileset(fileset);
     }
   }
@@ -267,48 +320,57 @@ public class UnoJarTask extends Jar {
             copy(new FileInputStream(mainManifest), zout, true);
           }
           zout.closeEntry();
-          // Now the rest of the main.jar entries
+          // Now the rest of the main.jar entries, first used first if there is a profile.
+          List<String[]> included = new ArrayList<>();
           while (iter.hasNext()) {
             FileSet fileset = (FileSet) iter.next();
             FileScanner scanner = fileset.getDirectoryScanner(getProject());
             String[] files = scanner.getIncludedFiles();
             File basedir = scanner.getBasedir();
             for (int i = 0; i < files.length; i++) {
-              String file = files[i].replace('\\', '/');
-              if (entries.contains(file)) {
-                log("Duplicate entry " + target + " (ignored): " + file, Project.MSG_WARN);
-                continue;
-              }
-              entries.add(file);
-              // Add any directory entries that have not already been added.
-              String p = new File(file).getParent();
-              if (p != null) {
-                String dirs = p.replace('\\', '/');
-                if (!entries.contains(dirs)) {
-                  String toks[] = dirs.split("/");
-                  String dir = "";
-                  for (int d = 0; d < toks.length; d++) {
-                    dir += toks[d] + "/";
-                    if (!entries.contains(dir)) {
-                      ZipEntry ze = new ZipEntry(dir);
-                      zout.putNextEntry(ze);
-                      // Suppress FindBugs AM warning.
-                      zout.flush();
-                      zout.closeEntry();
-                      entries.add(dir);
-                    }
+              included.add(new String[]{basedir.getPath(), files[i].replace('\\', '/')});
+            }
+          }
+          if (profile != null) {
+            Map<String, Integer> ranks = getProfileRanks(target);
+            included.sort(Comparator.comparing(f -> ranks.getOrDefault(f[1], Integer.MAX_VALUE)));
+          }
+          for (String[] include : included) {
+            File basedir = new File(include[0]);
+            String file = include[1];
+            if (entries.contains(file)) {
+              log("Duplicate entry " + target + " (ignored): " + file, Project.MSG_WARN);
+              continue;
+            }
+            entries.add(file);
+            // Add any directory entries that have not already been added.
+            String p = new File(file).getParent();
+            if (p != null) {
+              String dirs = p.replace('\\', '/');
+              if (!entries.contains(dirs)) {
+                String toks[] = dirs.split("/");
+                String dir = "";
+                for (int d = 0; d < toks.length; d++) {
+                  dir += toks[d] + "/";
+                  if (!entries.contains(dir)) {
+                    ZipEntry ze = new ZipEntry(dir);
+                    zout.putNextEntry(ze);
+                    // Suppress FindBugs AM warning.
+                    zout.flush();
+                    zout.closeEntry();
+                    entries.add(dir);
                   }
-                  entries.add(dir);
                 }
+                entries.add(dir);
               }
-
-              ZipEntry ze = new ZipEntry(file);
-              zout.putNextEntry(ze);
-              log("processing " + file, Project.MSG_DEBUG);
-              FileInputStream fis = new FileInputStream(new File(basedir, file));
-              copy(fis, zout, true);
-              zout.closeEntry();
             }
+
+            ZipEntry ze = new ZipEntry(file);
+            zout.putNextEntry(ze);
+            log("processing " + file, Project.MSG_DEBUG);
+            FileInputStream fis = new FileInputStream(new File(basedir, file));
+            copy(fis, zout, true);
+            zout.closeEntry();
           }
           zout.close();
           synchronized (this) {
@@ -424,7 +486,7 @@ public class UnoJarTask extends Jar {
     // Assemble main/main.jar
     FileSetPump pump = new FileSetPump(MAIN_MAIN_JAR);
     pump.start();
-    super.zipFile(pump.pin, zOut, MAIN_MAIN_JAR, System.currentTimeMillis(), null, ZipFileSet.DEFAULT_FILE_MODE);
+    zipNestedJar(pump.pin, zOut, MAIN_MAIN_JAR, System.currentTimeMillis(), null, ZipFileSet.DEFAULT_FILE_MODE);
 
   }
 
@@ -434,6 +496,9 @@ public class UnoJarTask extends Jar {
     checkMain();
     checkManifest();
 
+    jarIndex = index ? new JarIndex() : null;
+    serviceIndex = index ? new ServiceIndex() : null;
+
     // Add com.simontuffs.onejar classes
     addOneJarBoot(zOut);
 
@@ -442,6 +507,151 @@ public class UnoJarTask extends Jar {
 
   }
 
+  protected void finalizeZipOutputStream(ZipOutputStream zOut) throws IOException, BuildException {
+    if (jarIndex != null && !jarIndex.isEmpty() && zOut != null) {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      jarIndex.write(baos);
+      log("Writing " + JarIndex.NAME + " for " + jarIndex.getJars().size() + " jars", Project.MSG_VERBOSE);
+      super.zipFile(new ByteArrayInputStream(baos.toByteArray()), zOut, JarIndex.NAME, System.currentTimeMillis(),
+          null, ZipFileSet.DEFAULT_FILE_MODE);
+    }
+    jarIndex = null;
+    if (serviceIndex != null && !serviceIndex.isEmpty() && zOut != null) {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      serviceIndex.write(baos);
+      log("Writing " + ServiceIndex.NAME, Project.MSG_VERBOSE);
+      super.zipFile(new ByteArrayInputStream(baos.toByteArray()), zOut, ServiceIndex.NAME, System.currentTimeMillis(),
+          null, ZipFileSet.DEFAULT_FILE_MODE);
+    }
+    serviceIndex = null;
+    super.finalizeZipOutputStream(zOut);
+  }
+
+  /**
+   * @param jar the name of a nested jar, or null
+   * @return the position at which each entry (or if jar is null each jar) was first used in the profile
+   */
+  protected Map<String, Integer> getProfileRanks(String jar) {
+    if (profileEvents == null) {
+      try (InputStream is = new FileInputStream(profile)) {
+        profileEvents = Recorder.read(is);
+      } catch (IOException iox) {
+        throw new BuildException("Unable to read profile " + profile, iox);
+      }
+      log("Read " + profileEvents.size() + " events from " + profile, Project.MSG_VERBOSE);
+    }
+    Map<String, Integer> ranks = new HashMap<>();
+    for (Recorder.Event event : profileEvents) {
+      if (jar == null) {
+        ranks.putIfAbsent(event.jar, ranks.size());
+      } else if (jar.equals(event.jar)) {
+        ranks.putIfAbsent(event.name, ranks.size());
+      }
+    }
+    return ranks;
+  }
+
+  /**
+   * Add the lib filesets with one fileset per jar, ordered by first use in the profile. Jars the profile
+   * does not mention follow in the order they were declared. Filesets which are not simple directories
+   * (e.g. the contents of a zip) are added as they are. The declared order of every jar, including those
+   * in such filesets, is recorded in the manifest since it decides which jar wins when jars contain the
+   * same entry.
+   */
+  protected void addProfiledLibs() {
+    Map<String, Integer> ranks = getProfileRanks(null);
+    List<ZipFileSet> ordered = new ArrayList<>();
+    List<Integer> order = new ArrayList<>();
+    StringBuilder declared = new StringBuilder();
+    for (ZipFileSet fileset : libFilesets) {
+      if (fileset.getSrc(getProject()) != null) {
+        ordered.add(fileset);
+        order.add(Integer.MAX_VALUE);
+        for (String file : fileset.getDirectoryScanner(getProject()).getIncludedFiles()) {
+          String vPath = "lib/" + file.replace('\\', '/');
+          if (vPath.endsWith(".jar")) {
+            declared.append(declared.length() > 0 ? " " : "").append(encodeName(vPath));
+          }
+        }
+        continue;
+      }
+      FileScanner scanner = fileset.getDirectoryScanner(getProject());
+      for (String file : scanner.getIncludedFiles()) {
+        ZipFileSet single = new ZipFileSet();
+        single.setProject(getProject());
+        single.setDir(scanner.getBasedir());
+        single.createInclude().setName(file);
+        single.setPrefix("lib/");
+        String vPath = "lib/" + file.replace('\\', '/');
+        ordered.add(single);
+        order.add(ranks.getOrDefault(vPath, Integer.MAX_VALUE));
+        declared.append(declared.length() > 0 ? " " : "").append(encodeName(vPath));
+      }
+    }
+    try {
+      Manifest manifest = new Manifest();
+      manifest.addConfiguredAttribute(new Attribute(Boot.ONE_JAR_LIB_ORDER, declared.toString()));
+      super.addConfiguredManifest(manifest);
+    } catch (ManifestException mx) {
+      throw new BuildException(mx);
+    }
+    Integer[] indexes = new Integer[ordered.size()];
+    for (int i = 0; i < indexes.length; i++) {
+      indexes[i] = i;
+    }
+    Arrays.sort(indexes, Comparator.comparing(order::get));
+    for (Integer i : indexes) {
+      super.addFileset(ordered.get(i));
+    }
+    libFilesets.clear();
+  }
+
+  /**
+   * Lists of entry names in the manifest are separated by whitespace, so whitespace (and '%') within a
+   * name is written as %XX (hex), as the JarClassLoader expects.
+   *
+   * @param name the name of an entry
+   * @return the name as written in a list
+   */
+  protected static String encodeName(String name) {
+    StringBuilder encoded = new StringBuilder(name.length());
+    for (char c : name.toCharArray()) {
+      if (c <= ' ' || c == '%') {
+        encoded.append(String.format("%%%02X", (int) c));
+      } else {
+        encoded.append(c);
+      }
+    }
+    return encoded.toString();
+  }
+
+  /**
+   * List the native libraries in the manifest, so that the loader can expand them all in parallel when it
+   * starts rather than one by one as they are loaded. Filesets which are not simple directories are not
+   * listed.
+   */
+  protected void addBinLibList() {
+    StringBuilder list = new StringBuilder();
+    for (ZipFileSet fileset : binLibFilesets) {
+      if (fileset.getSrc(getProject()) != null) {
+        continue;
+      }
+      for (String file : fileset.getDirectoryScanner(getProject()).getIncludedFiles()) {
+        list.append(list.length() > 0 ? " " : "").append(encodeName("binlib/" + file.replace('\\', '/')));
+      }
+    }
+    if (list.length() == 0) {
+      return;
+    }
+    try {
+      Manifest manifest = new Manifest();
+      manifest.addConfiguredAttribute(new Attribute(Boot.ONE_JAR_BINLIB_EXTRACT, list.toString()));
+      super.addConfiguredManifest(manifest);
+    } catch (ManifestException mx) {
+      throw new BuildException(mx);
+    }
+  }
+
   public void execute() throws BuildException {
     log("execute()", Project.MSG_VERBOSE);
     // First include a main.jar if specified.
@@ -454,6 +664,13 @@ public class UnoJarTask extends Jar {
       super.addFileset(fs);
     }
 
+    if (!libFilesets.isEmpty()) {
+      addProfiledLibs();
+    }
+    if (!binLibFilesets.isEmpty()) {
+      addBinLibList();
+    }
+
     // Then, add all files to the final jar.
     super.execute();
   }
@@ -463,8 +680,55 @@ public class UnoJarTask extends Jar {
                          int mode) throws IOException {
     if (vPath.equals(Boot.MAIN_JAR) && (main == null || main.jar == null)) {
       log("zipFile(): unable to build " + Boot.MAIN_JAR, Project.MSG_VERBOSE);
+    } else if ((vPath.startsWith("lib/") || vPath.startsWith("main/")) && vPath.endsWith(".jar")) {
+      zipNestedJar(is, zOut, vPath, lastModified, fromArchive, mode);
     } else {
       super.zipFile(is, zOut, vPath, lastModified, fromArchive, mode);
     }
   }
+
+  protected void zipNestedJar(InputStream is, ZipOutputStream zOut, String vPath, long lastModified, File fromArchive,
+                              int mode) throws IOException {
+    if (jarIndex != null) {
+      is = indexNestedJar(is, vPath);
+    }
+    boolean compress = isCompress();
+    if (storeJars) {
+      setCompress(false);
+    }
+    try {
+      super.zipFile(is, zOut, vPath, lastModified, fromArchive, mode);
+    } finally {
+      setCompress(compress);
+    }
+  }
+
+  /**
+   * Record the entries of a nested jar in the index, and its service providers in the service index.
+   *
+   * @param is    the nested jar, which is consumed
+   * @param vPath the name of the nested jar in the uno-jar
+   * @return a stream of the same bytes
+   */
+  protected InputStream indexNestedJar(InputStream is, String vPath) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    copy(is, baos, false);
+    byte[] bytes = baos.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    try {
+      ZipDirectory dir = new ZipDirectory(ByteBuffer.wrap(bytes));
+      jarIndex.add(vPath, bytes.length, crc.getValue(), dir.getEntries());
+      for (ZipDirectory.Entry entry : dir.getEntries()) {
+        String service = entry.name.startsWith(ServiceIndex.SERVICES)
+            ? entry.name.substring(ServiceIndex.SERVICES.length()) : "";
+        if (!entry.isDirectory() && !service.isEmpty() && service.indexOf('/') < 0) {
+          serviceIndex.add(service, vPath, ServiceIndex.parse(new ByteArrayInputStream(dir.read(entry))));
+        }
+      }
+    } catch (IOException iox) {
+      log("Unable to index " + vPath + ": " + iox.getMessage(), Project.MSG_WARN);
+    }
+    return new ByteArrayInputStream(bytes);
+  }
 }
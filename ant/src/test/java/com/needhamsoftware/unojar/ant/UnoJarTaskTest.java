@@ -0,0 +1,141 @@
+package com.needhamsoftware.unojar.ant;
+
+import com.needhamsoftware.unojar.Boot;
+import com.needhamsoftware.unojar.Recorder;
+import junit.framework.TestCase;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.ZipFileSet;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class UnoJarTaskTest extends TestCase {
+
+  private File dir;
+  private Project project;
+
+  protected void setUp() throws Exception {
+    dir = Files.createTempDirectory("uno-jar-task").toFile();
+    project = new Project();
+    project.init();
+    project.setBaseDir(dir);
+    jar(new File(dir, "main/main.jar"), "com/example/Main.class");
+    for (String name : new String[]{"a", "b", "c"}) {
+      jar(new File(dir, "libs/" + name + ".jar"), "data/" + name + ".txt");
+    }
+    File z = jar(new File(dir, "z.jar"), "data/z.txt");
+    try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(new File(dir, "z.zip")))) {
+      zip.putNextEntry(new ZipEntry("z.jar"));
+      zip.write(Files.readAllBytes(z.toPath()));
+      zip.closeEntry();
+    }
+  }
+
+  protected void tearDown() throws Exception {
+    delete(dir);
+  }
+
+  private static File jar(File file, String entry) throws IOException {
+    file.getParentFile().mkdirs();
+    Manifest manifest = new Manifest();
+    manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    try (JarOutputStream jar = new JarOutputStream(new FileOutputStream(file), manifest)) {
+      jar.putNextEntry(new ZipEntry(entry));
+      jar.write(entry.getBytes());
+      jar.closeEntry();
+    }
+    return file;
+  }
+
+  private static void delete(File file) {
+    File[] files = file.listFiles();
+    if (files != null) {
+      for (File child : files) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  private ZipFileSet fileset(String dir, String include) {
+    ZipFileSet fileset = new ZipFileSet();
+    fileset.setProject(project);
+    fileset.setDir(new File(this.dir, dir));
+    fileset.createInclude().setName(include);
+    return fileset;
+  }
+
+  /**
+   * Build an uno-jar with lib/a.jar, the contents of z.zip (lib/z.jar), lib/b.jar and lib/c.jar declared in
+   * that order.
+   */
+  private File build(File profile) {
+    File out = new File(dir, "out.jar");
+    UnoJarTask task = new UnoJarTask();
+    task.setProject(project);
+    task.setDestFile(out);
+    if (profile != null) {
+      task.setProfile(profile);
+    }
+    UnoJarTask.MainJars main = new UnoJarTask.MainJars();
+    main.addFileSet(fileset("main", "main.jar"));
+    task.addConfiguredMainJars(main);
+    UnoJarTask.Lib lib = new UnoJarTask.Lib();
+    lib.addFileSet(fileset("libs", "a.jar"));
+    ZipFileSet zip = new ZipFileSet();
+    zip.setProject(project);
+    zip.setSrc(new File(dir, "z.zip"));
+    lib.addFileSet(zip);
+    lib.addFileSet(fileset("libs", "b.jar"));
+    lib.addFileSet(fileset("libs", "c.jar"));
+    task.addConfiguredLib(lib);
+    task.execute();
+    return out;
+  }
+
+  private static List<String> libs(JarFile jar) {
+    List<String> libs = new ArrayList<>();
+    for (ZipEntry entry : Collections.list(jar.entries())) {
+      if (entry.getName().startsWith("lib/") && entry.getName().endsWith(".jar")) {
+        libs.add(entry.getName());
+      }
+    }
+    return libs;
+  }
+
+  @Test
+  public void testDeclaredOrder() throws Exception {
+    try (JarFile jar = new JarFile(build(null))) {
+      assertEquals(List.of("lib/a.jar", "lib/z.jar", "lib/b.jar", "lib/c.jar"), libs(jar));
+      assertNull(jar.getManifest().getMainAttributes().getValue(Boot.ONE_JAR_LIB_ORDER));
+    }
+  }
+
+  @Test
+  public void testProfiledOrder() throws Exception {
+    File profile = new File(dir, "profile.tsv");
+    try (Recorder recorder = new Recorder(profile, false)) {
+      recorder.record(Recorder.RESOURCE, "data/c.txt", "lib/c.jar");
+      recorder.record(Recorder.RESOURCE, "data/a.txt", "lib/a.jar");
+    }
+    try (JarFile jar = new JarFile(build(profile))) {
+      // first used first, then the rest as declared
+      assertEquals(List.of("lib/c.jar", "lib/a.jar", "lib/z.jar", "lib/b.jar"), libs(jar));
+      // and every jar, wherever it came from, keeps its declared precedence
+      assertEquals("lib/a.jar lib/z.jar lib/b.jar lib/c.jar",
+          jar.getManifest().getMainAttributes().getValue(Boot.ONE_JAR_LIB_ORDER));
+    }
+  }
+}
@@ -50,6 +50,9 @@ public class Boot {
   public final static String ONE_JAR_MAIN_ARGS = "Uno-Jar-Main-Args";
   public final static String ONE_JAR_URL_FACTORY = "Uno-Jar-URL-Factory";
   public final static String ONE_JAR_BINLIB_RESOLVER = "Uno-Jar-Binlib-Resolver";
+  public final static String ONE_JAR_LIB_ORDER = "Uno-Jar-Lib-Order";
+  public final static String ONE_JAR_DELEGATION = "Uno-Jar-Delegation";
+  public final static String ONE_JAR_BINLIB_EXTRACT = "Uno-Jar-Binlib-Extract";
 
   public final static String MAIN_JAR = "main/main.jar";
 
@@ -66,19 +69,35 @@ public class Boot {
   public final static String[] HELP_PROPERTIES = {
       P_MAIN_CLASS, "Specifies the name of the class which should be executed \n(via public static void main(String[])",
       P_MAIN_APP, "Specifies the name of the main/<app>.jar to be executed",
-      JarClassLoader.P_RECORD, "true:  Enables recording of the classes loaded by the application",
-      JarClassLoader.P_JAR_NAMES, "true:  Recorded classes are kept in directories corresponding to their jar names.\n" +
-      "false: Recorded classes are flattened into a single directory.  \nDuplicates are ignored (first wins)",
+      JarClassLoader.P_RECORD, "true:  Enables recording of the classes and resources used by the application",
+      JarClassLoader.P_RECORD_FILE, "The file to record to, default " + JarClassLoader.RECORDING,
+      JarClassLoader.P_JAR_NAMES, "true:  Entries are recorded once for each jar that serves them.\n" +
+      "false: Entries are recorded once by name.  \nDuplicates are ignored (first wins)",
       JarClassLoader.P_VERBOSE, "true:  Print verbose classloading information",
       JarClassLoader.P_SILENT, "true:  Dont' print any classloading information",
       JarClassLoader.P_INFO, "true:  Print informative classloading information",
       P_STATISTICS, "true:  Shows statistics about the Uno-Jar Classloader",
       P_JARPATH, "Full path of the uno-Jar file being executed.  \nOnly needed if java.class.path does not contain the path to the jar, e.g. on Max OS/X.",
       JarClassLoader.P_ONE_JAR_CLASS_PATH, "Extra classpaths to be added to the execution environment.  \nUse platform independent path separator '" + JarClassLoader.P_PATH_SEPARATOR + "'",
-      JarClassLoader.P_EXPAND_DIR, "Directory to use for expanded files.",
+      JarClassLoader.P_EXPAND_DIR, "Directory to use for expanded files, for the cached index of jars mapped into memory, \nand for native libraries, which are then kept between runs.",
+      JarClassLoader.P_LAZY, "true:  Index library jars at startup and read classes and resources on first use",
+      JarClassLoader.P_MMAP, "true:  Map the Uno-Jar file into memory and read uncompressed library jars in place",
+      JarClassLoader.P_PARALLEL, "true:  Index and inflate library jars in parallel on all available cores",
+      JarClassLoader.P_OFFHEAP, "true:  Keep cached classes and resources in direct memory instead of on the heap",
+      JarClassLoader.P_BACKGROUND, "true:  Start the application once main jars are loaded, and load library jars in the background",
+      JarClassLoader.P_RELEASE, "true:  Release the cached bytes of classes once they are defined, they are re-read if requested",
+      JarClassLoader.P_MISS_CACHE, "true:  Remember classes and resources that were not found, so repeated lookups fail fast",
+      JarClassLoader.P_DELEGATION, "Packages to look for in the Uno-Jar before the parent classloader, e.g. '*=local, org.slf4j.*=parent'.  \nOverrides the " + ONE_JAR_DELEGATION + " manifest attribute",
       P_SHOW_PROPERTIES, "true:  Shows the JVM system properties.",
   };
 
+  public final static String[] HELP_ATTRIBUTES = {
+      ONE_JAR_MAIN_CLASS, "The name of the class to execute, unless " + P_MAIN_CLASS + " is set",
+      ONE_JAR_DELEGATION, "Packages to look for in the Uno-Jar before the parent classloader, see " + JarClassLoader.P_DELEGATION,
+      ONE_JAR_LIB_ORDER, "The library jars in the order they were declared, which decides which jar wins \nwhen several hold the same entry.  Written when a profile reorders the jars",
+      ONE_JAR_BINLIB_EXTRACT, "The native libraries to expand into " + JarClassLoader.P_EXPAND_DIR + " at startup",
+  };
+
   public final static String[] HELP_ARGUMENTS = {
       A_HELP, "Shows this message, then exits.",
       A_VERSION, "Shows the version of Uno-Jar, then exits.",
@@ -95,8 +114,9 @@ public class Boot {
 
   // Singleton loader.  This must not be changed once it is set, otherwise all
   // sorts of nasty class-cast exceptions will ensue.  Hence we control
-  // access to it strongly.
-  private static JarClassLoader loader = null;
+  // access to it strongly.  It is volatile rather than guarded by a lock since it is only ever
+  // written once, and read on every 'onejar:' URL connection.
+  private static volatile JarClassLoader loader = null;
 
 
   /**
@@ -106,7 +126,7 @@ public class Boot {
    *
    * @return the classloader
    */
-  public synchronized static JarClassLoader getClassLoader() {
+  public static JarClassLoader getClassLoader() {
     return loader;
   }
 
@@ -385,6 +405,16 @@ public class Boot {
           System.out.println(wrap("    ", HELP_PROPERTIES[i], width + 1));
         }
         System.out.println();
+
+        width = firstWidth(HELP_ATTRIBUTES);
+        System.out.println("Uno-Jar uses the following attributes of the Uno-Jar manifest");
+        for (int i = 0; i < HELP_ATTRIBUTES.length; i++) {
+          System.out.print(pad("    ", HELP_ATTRIBUTES[i++], width + 1));
+          System.out.println(wrap("    ", HELP_ATTRIBUTES[i], width + 1));
+        }
+        System.out.println("Lists of entries are separated by whitespace, and whitespace or '%' within an entry name");
+        System.out.println("is written as %XX (hex), e.g. lib/my%20lib.jar");
+        System.out.println();
         System.exit(0);
       } else if (argument.startsWith(A_VERSION)) {
         String version = version();
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2019=2020, Needham Software LLC
+ * All rights reserved.
+ *
+ * See the full license at https://github.com/nsoft/uno-jar/blob/master/LICENSE.txt
+ * See addition code licenses at: https://github.com/nsoft/uno-jar/blob/master/NOTICE.txt
+ */
+
+package com.needhamsoftware.unojar;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An InputStream that reads from a ByteBuffer without copying it. The stream reads from its own
+ * view of the buffer, so the position of the supplied buffer is never changed.
+ */
+public class ByteBufferInputStream extends InputStream {
+
+  private final ByteBuffer buffer;
+  private int mark;
+
+  public ByteBufferInputStream(ByteBuffer buffer) {
+    this.buffer = buffer.duplicate();
+    this.mark = this.buffer.position();
+  }
+
+  @Override
+  public int read() {
+    return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) {
+    if (len == 0) {
+      return 0;
+    }
+    if (!buffer.hasRemaining()) {
+      return -1;
+    }
+    len = Math.min(len, buffer.remaining());
+    buffer.get(b, off, len);
+    return len;
+  }
+
+  @Override
+  public long skip(long n) {
+    int skip = (int) Math.max(0, Math.min(n, buffer.remaining()));
+    buffer.position(buffer.position() + skip);
+    return skip;
+  }
+
+  @Override
+  public int available() {
+    return buffer.remaining();
+  }
+
+  @Override
+  public boolean markSupported() {
+    return true;
+  }
+
+  @Override
+  public synchronized void mark(int readlimit) {
+    mark = buffer.position();
+  }
+
+  @Override
+  public synchronized void reset() {
+    buffer.position(mark);
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2019=2020, Needham Software LLC
+ * All rights reserved.
+ *
+ * See the full license at https://github.com/nsoft/uno-jar/blob/master/LICENSE.txt
+ * See addition code licenses at: https://github.com/nsoft/uno-jar/blob/master/NOTICE.txt
+ */
+
+package com.needhamsoftware.unojar;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.regex.Matcher;
+import java.util.zip.ZipEntry;
+
+/**
+ * The contents of the uno-jar.class.path, so that the external class loader is only asked for classes and
+ * resources it may actually hold. Asking it for anything else costs a search of every external URL (and
+ * for classes an exception), which is paid by every class in the uno-jar when the external path is set.
+ * <p>
+ * Jars are indexed when the index is created. Directories are checked on each lookup, since they may
+ * change while the application runs. If the path holds anything else (a URL that is not a local file, or
+ * a jar with a Class-Path) the index is incomplete and rules nothing out.
+ */
+public class ClassPathIndex {
+
+  private static final Logger LOGGER = Logger.getLogger("ClassPathIndex");
+
+  private final Set<String> names = new HashSet<>();
+  private final List<File> directories = new ArrayList<>();
+  private boolean complete = true;
+
+  /**
+   * @param urls the URLs of the external class path
+   */
+  public ClassPathIndex(URL[] urls) {
+    for (URL url : urls) {
+      if (!"file".equals(url.getProtocol())) {
+        LOGGER.info("Unable to index " + url + ", it will be searched for every class and resource");
+        complete = false;
+        continue;
+      }
+      File file;
+      try {
+        file = new File(url.toURI());
+      } catch (URISyntaxException | IllegalArgumentException x) {
+        file = new File(url.getPath());
+      }
+      if (file.isDirectory()) {
+        directories.add(file);
+      } else if (file.isFile()) {
+        addJar(file);
+      }
+    }
+  }
+
+  private void addJar(File file) {
+    try (JarFile jar = new JarFile(file, false)) {
+      Manifest manifest = jar.getManifest();
+      if (manifest != null && manifest.getMainAttributes().getValue(Attributes.Name.CLASS_PATH) != null) {
+        // The jars it names are searched too.
+        LOGGER.info(file + " has a Class-Path, the external class path will be searched for every class and resource");
+        complete = false;
+      }
+      Enumeration<? extends ZipEntry> entries = jar.entries();
+      while (entries.hasMoreElements()) {
+        String name = entries.nextElement().getName();
+        names.add(name);
+        if (name.endsWith("/")) {
+          names.add(name.substring(0, name.length() - 1));
+        }
+        Matcher m = JarClassLoader.MR_PATTERN.matcher(name);
+        if (m.lookingAt()) {
+          names.add(name.substring(m.end()));
+        }
+      }
+    } catch (IOException iox) {
+      LOGGER.warning("Unable to index " + file + " (" + iox.getMessage() + "), it will be searched for every class and resource");
+      complete = false;
+    }
+  }
+
+  /**
+   * @param name the name of a resource, or of a class file e.g. com/example/Foo.class
+   * @return false if the external class path certainly does not hold it
+   */
+  public boolean mayContain(String name) {
+    if (!complete || names.contains(name)) {
+      return true;
+    }
+    for (File directory : directories) {
+      if (new File(directory, name).exists()) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2019=2020, Needham Software LLC
+ * All rights reserved.
+ *
+ * See the full license at https://github.com/nsoft/uno-jar/blob/master/LICENSE.txt
+ * See addition code licenses at: https://github.com/nsoft/uno-jar/blob/master/NOTICE.txt
+ */
+
+package com.needhamsoftware.unojar;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Holds a single copy of each distinct payload. Payloads are keyed by their length and CRC-32, and
+ * candidates with the same key are compared byte for byte, so a checksum collision never shares bytes
+ * between different entries. Identical resources and classes found in several jars (licenses, shaded
+ * libraries, multi-release variants) and the jar-local and global names of a resource then all refer
+ * to the same bytes.
+ * <p>
+ * The table only holds weak references, a payload that is no longer referenced by any cache entry may be
+ * collected, and its entry is dropped from the table the next time a payload is interned. If an off-heap
+ * store is supplied, payloads are held there rather than on the java heap.
+ */
+public class ContentStore {
+
+  private final OffHeapStore offHeap;
+  private final Map<Long, List<Payload>> payloads = new ConcurrentHashMap<>();
+  private final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+  private final AtomicLong requested = new AtomicLong();
+  private final AtomicLong stored = new AtomicLong();
+
+  // A weak reference to a payload which knows its key, so it can be removed once the payload is collected.
+  private static class Payload extends WeakReference<Object> {
+    private final Long key;
+
+    private Payload(Object payload, Long key, ReferenceQueue<Object> queue) {
+      super(payload, queue);
+      this.key = key;
+    }
+  }
+
+  /**
+   * @param offHeap the store used to hold payloads outside the java heap, or null to hold them on the heap.
+   */
+  public ContentStore(OffHeapStore offHeap) {
+    this.offHeap = offHeap;
+  }
+
+  /**
+   * @return true if payloads are held off the java heap, see {@link #internDirect(byte[])}
+   */
+  public boolean isOffHeap() {
+    return offHeap != null;
+  }
+
+  /**
+   * Find the shared copy of some bytes, the supplied array becomes the shared copy if there is none.
+   * The returned array must not be modified.
+   *
+   * @param bytes the payload
+   * @return an array with the same content as bytes
+   */
+  public byte[] intern(byte[] bytes) {
+    return (byte[]) intern(bytes, false);
+  }
+
+  /**
+   * Find the shared off-heap copy of some bytes, copying them into the off-heap store if there is none.
+   *
+   * @param bytes the payload
+   * @return a read-only direct buffer with the same content as bytes, shared by all callers so use a
+   * duplicate of it to read.
+   * @throws IllegalStateException if this store was created without an off-heap store
+   */
+  public ByteBuffer internDirect(byte[] bytes) {
+    if (offHeap == null) {
+      throw new IllegalStateException("No off-heap store");
+    }
+    return (ByteBuffer) intern(bytes, true);
+  }
+
+  private Object intern(byte[] bytes, boolean direct) {
+    expunge();
+    requested.addAndGet(bytes.length);
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    Long key = crc.getValue() << 32 | bytes.length;
+    Object[] result = new Object[1];
+    // The candidates for a key are only ever touched while the table holds the lock for that key.
+    payloads.compute(key, (k, candidates) -> {
+      if (candidates == null) {
+        candidates = new ArrayList<>(1);
+      }
+      for (Payload candidate : candidates) {
+        Object payload = candidate.get();
+        if (payload != null && direct == payload instanceof ByteBuffer && sameContent(payload, bytes)) {
+          result[0] = payload;
+          return candidates;
+        }
+      }
+      Object payload = direct ? offHeap.put(bytes) : bytes;
+      candidates.add(new Payload(payload, k, collected));
+      stored.addAndGet(bytes.length);
+      result[0] = payload;
+      return candidates;
+    });
+    return result[0];
+  }
+
+  /**
+   * Remove the references to collected payloads from the table, and keys which no longer have any.
+   */
+  private void expunge() {
+    Reference<?> reference;
+    while ((reference = collected.poll()) != null) {
+      Payload payload = (Payload) reference;
+      payloads.computeIfPresent(payload.key, (k, candidates) -> {
+        candidates.remove(payload);
+        return candidates.isEmpty() ? null : candidates;
+      });
+    }
+  }
+
+  private static boolean sameContent(Object payload, byte[] bytes) {
+    if (payload instanceof byte[]) {
+      return Arrays.equals((byte[]) payload, bytes);
+    }
+    return payload.equals(ByteBuffer.wrap(bytes));
+  }
+
+  /**
+   * @return the number of distinct lengths and checksums in the table
+   */
+  public int size() {
+    expunge();
+    return payloads.size();
+  }
+
+  /**
+   * @return the total number of bytes passed to this store
+   */
+  public long getRequested() {
+    return requested.get();
+  }
+
+  /**
+   * @return the number of bytes actually stored, the difference from {@link #getRequested()} was shared.
+   */
+  public long getStored() {
+    return stored.get();
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2019=2020, Needham Software LLC
+ * All rights reserved.
+ *
+ * See the full license at https://github.com/nsoft/uno-jar/blob/master/LICENSE.txt
+ * See addition code licenses at: https://github.com/nsoft/uno-jar/blob/master/NOTICE.txt
+ */
+
+package com.needhamsoftware.unojar;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decides, package by package, whether the JarClassLoader asks its parent before looking in the uno-jar
+ * (the normal java delegation model) or looks in the uno-jar first. The policy is a comma separated list of
+ * rules of the form <code>pattern=route</code>, where the route is <code>parent</code> or
+ * <code>local</code> and the pattern is one of:
+ * <pre>
+ *   *                  every package
+ *   com.example        the package com.example only
+ *   com.example.*      com.example and all of its sub packages
+ * </pre>
+ * The most specific rule wins, e.g. <code>*=local, org.slf4j.*=parent</code>. Packages which no rule
+ * matches go to the parent first. Packages of the java platform (the packages of the modules in the boot
+ * layer) always go to the parent first whatever the rules say, and java.* packages only ever go to the
+ * parent. The route of each package is worked out once, after that it costs a single map lookup.
+ */
+public class DelegationPolicy {
+
+  public enum Route {
+    /**
+     * Ask the parent first, then the uno-jar.
+     */
+    PARENT,
+    /**
+     * Look in the uno-jar first, then ask the parent.
+     */
+    LOCAL,
+    /**
+     * Only ask the parent, java.* classes can't be defined by any other loader.
+     */
+    PLATFORM
+  }
+
+  private static final Logger LOGGER = Logger.getLogger("DelegationPolicy");
+
+  // Packages of the modules in the boot layer, owned by the java platform.
+  private static final Set<String> PLATFORM_PACKAGES = new HashSet<>();
+
+  static {
+    for (Module module : ModuleLayer.boot().modules()) {
+      PLATFORM_PACKAGES.addAll(module.getPackages());
+    }
+  }
+
+  private final Map<String, Route> packages = new HashMap<>();
+  private final Map<String, Route> trees = new HashMap<>();
+  private Route fallback = Route.PARENT;
+  private final Map<String, Route> routes = new ConcurrentHashMap<>();
+
+  /**
+   * @param spec the rules, see above
+   * @throws IllegalArgumentException if a rule can't be parsed
+   */
+  public DelegationPolicy(String spec) {
+    for (String rule : spec.split(",")) {
+      rule = rule.trim();
+      if (rule.isEmpty()) {
+        continue;
+      }
+      int eq = rule.indexOf('=');
+      if (eq < 0) {
+        throw new IllegalArgumentException("invalid delegation rule '" + rule + "', expected pattern=parent|local");
+      }
+      String pattern = rule.substring(0, eq).trim();
+      Route route;
+      try {
+        route = Route.valueOf(rule.substring(eq + 1).trim().toUpperCase());
+      } catch (IllegalArgumentException iax) {
+        throw new IllegalArgumentException("invalid delegation rule '" + rule + "', expected pattern=parent|local");
+      }
+      if (route == Route.PLATFORM) {
+        throw new IllegalArgumentException("invalid delegation rule '" + rule + "', expected pattern=parent|local");
+      }
+      if (pattern.equals("*")) {
+        fallback = route;
+      } else if (pattern.endsWith(".*")) {
+        trees.put(pattern.substring(0, pattern.length() - 2), route);
+      } else {
+        packages.put(pattern, route);
+      }
+    }
+  }
+
+  /**
+   * @param className the binary name of a class, e.g. com.example.Foo
+   * @return the route for the package of the class
+   */
+  public Route routeClass(String className) {
+    int dot = className.lastIndexOf('.');
+    return route(dot < 0 ? "" : className.substring(0, dot));
+  }
+
+  /**
+   * @param resource the name of a resource, e.g. com/example/foo.properties
+   * @return the route for the package holding the resource
+   */
+  public Route routeResource(String resource) {
+    int start = resource.startsWith("/") ? 1 : 0;
+    int slash = resource.lastIndexOf('/');
+    return route(slash < start ? "" : resource.substring(start, slash).replace('/', '.'));
+  }
+
+  /**
+   * @param pkg the name of a package, e.g. com.example
+   * @return the route for the package
+   */
+  public Route route(String pkg) {
+    Route route = routes.get(pkg);
+    if (route == null) {
+      route = computeRoute(pkg);
+      routes.put(pkg, route);
+    }
+    return route;
+  }
+
+  protected Route computeRoute(String pkg) {
+    if (pkg.equals("java") || pkg.startsWith("java.")) {
+      return Route.PLATFORM;
+    }
+    Route route = packages.get(pkg);
+    for (String tree = pkg; route == null; ) {
+      route = trees.get(tree);
+      int dot = tree.lastIndexOf('.');
+      if (dot < 0) {
+        break;
+      }
+      tree = tree.substring(0, dot);
+    }
+    if (route == null) {
+      route = fallback;
+    }
+    if (route == Route.LOCAL && PLATFORM_PACKAGES.contains(pkg)) {
+      LOGGER.fine("package " + pkg + " belongs to the java platform, asking the parent first");
+      return Route.PARENT;
+    }
+    return route;
+  }
+}
@@ -27,13 +27,42 @@ public class Handler extends URLStreamHandler {
    */
   public static String PROTOCOL = "onejar";
 
+  // The loader that created the URLs opened by this handler, or null if they are resolved by name.
+  private final JarClassLoader loader;
+
+  public Handler() {
+    this(null);
+  }
+
+  /**
+   * A handler for URLs created by {@link JarClassLoader.UnoJarURLFactory}, which name the jar as well as the
+   * entry, e.g. onejar:/lib/util.jar!/log4j2.component.properties. Opening one is a single lookup in the
+   * loader's cache rather than a search.
+   *
+   * @param loader the loader whose entries the URLs name
+   */
+  public Handler(JarClassLoader loader) {
+    this.loader = loader;
+  }
+
   /**
    * @see java.net.URLStreamHandler#openConnection(java.net.URL)
    */
   protected URLConnection openConnection(final URL u) {
-    final String resource = u.getPath();
+    final String path = u.getPath();
+    final int separator = path.indexOf("!/");
+    final String resource = separator >= 0 ? path.substring(separator + 2) : path;
     return new URLConnection(u) {
+      private JarClassLoader.ByteCode entry;
+
       public void connect() {
+        if (!connected) {
+          if (loader != null && separator >= 0) {
+            String jar = path.substring(path.startsWith("/") ? 1 : 0, separator);
+            entry = loader.getEntry(jar.isEmpty() ? "/" : jar, resource);
+          }
+          connected = true;
+        }
       }
 
       public String getContentType() {
@@ -44,12 +73,19 @@ public class Handler extends URLStreamHandler {
         return contentType;
       }
 
+      public long getContentLengthLong() {
+        connect();
+        return entry != null ? entry.getLength() : -1;
+      }
+
       public InputStream getInputStream() throws IOException {
+        connect();
+        if (entry != null) {
+          return new ByteBufferInputStream(entry.getBuffer());
+        }
         // Use the Boot classloader to get the resource.  There
         // is only one per one-jar.
-        // TODO: this is unacceptable coupling with Boot.  The classloader
-        // needs to be injected somehow.
-        JarClassLoader cl = Boot.getClassLoader();
+        JarClassLoader cl = loader != null ? loader : Boot.getClassLoader();
         InputStream is = cl.getByteStream(resource);
         // sun.awt image loading does not like null input streams returned here.
         // Throw IOException (probably better anyway).
@@ -21,19 +21,41 @@ import java.io.*;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.AccessController;
 import java.security.CodeSource;
 import java.security.PrivilegedAction;
 import java.security.ProtectionDomain;
 import java.security.cert.Certificate;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.BiFunction;
 import java.util.jar.Attributes;
 import java.util.jar.Attributes.Name;
 import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
 import java.util.jar.JarInputStream;
 import java.util.jar.Manifest;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
 
 import static java.lang.StackWalker.Option.RETAIN_CLASS_REFERENCE;
 
@@ -62,19 +84,32 @@ public class JarClassLoader extends ClassLoader implements IProperties {
   public final static String P_SILENT = PROPERTY_PREFIX + "silent";
   public final static String P_JAR_NAMES = PROPERTY_PREFIX + "jar.names";
   public final static String P_RECORD = PROPERTY_PREFIX + "record";
+  public final static String P_RECORD_FILE = PROPERTY_PREFIX + "record.file";
+  public final static String P_LAZY = PROPERTY_PREFIX + "lazy";
+  public final static String P_MMAP = PROPERTY_PREFIX + "mmap";
+  public final static String P_PARALLEL = PROPERTY_PREFIX + "parallel";
+  public final static String P_OFFHEAP = PROPERTY_PREFIX + "offheap";
+  public final static String P_RELEASE = PROPERTY_PREFIX + "release";
+  public final static String P_BACKGROUND = PROPERTY_PREFIX + "background";
+  public final static String P_MISS_CACHE = PROPERTY_PREFIX + "miss.cache";
+  public final static String P_DELEGATION = PROPERTY_PREFIX + "delegation";
   // System properties.
   public final static String P_EXPAND_DIR = JarClassLoader.PROPERTY_PREFIX + "expand.dir";
   public final static String P_PATH_SEPARATOR = "|";
   public final static String P_ONE_JAR_CLASS_PATH = JarClassLoader.PROPERTY_PREFIX + "class.path";
   public final static String MANIFEST = "META-INF/MANIFEST.MF";
+  public final static String RECORDING = "uno-jar-profile.tsv";
 
   public final static String BINLIB_PREFIX = "binlib/";
   public final static String MAIN_PREFIX = "main/";
   public final static String MULTI_RELEASE = "Multi-Release";
   public final static String CLASS = ".class";
   public static final String LIB = "lib/";
+  public static final int BUFFER_SIZE = 64 * 1024;
 
   protected ClassLoader externalClassLoader;
+  // What the external class loader holds, null if it is not known.
+  protected ClassPathIndex externalIndex;
 
   private static final Logger LOGGER = Logger.getLogger("JarClassLoader");
 
@@ -88,30 +123,301 @@ public class JarClassLoader extends ClassLoader implements IProperties {
     return oneJarPath;
   }
 
-  // Synchronize for thread safety.  This is less important until we
-  // start to do lazy loading, but it's a good idea anyway.
-  protected Map<String, ByteCode> byteCode = Collections.synchronizedMap(new HashMap<>());
-  protected Map<String, ProtectionDomain> pdCache = Collections.synchronizedMap(new HashMap<>());
-  protected Map<String, String> binLibPath = Collections.synchronizedMap(new HashMap<>());
-  protected Set<String> jarNames = Collections.synchronizedSet(new HashSet<>());
+  static {
+    // Class loading locks per class name rather than on the loader.
+    registerAsParallelCapable();
+  }
+
+  private static final StackWalker WALKER = StackWalker.getInstance(RETAIN_CLASS_REFERENCE);
+
+  // The codebase of each class defined by this loader, computed once per class from its ProtectionDomain
+  // so that resource lookups don't need to search the cache for the caller.
+  private final ClassValue<String> classCodebase = new ClassValue<>() {
+    @Override
+    protected String computeValue(Class<?> type) {
+      ProtectionDomain pd = AccessController.doPrivileged((PrivilegedAction<ProtectionDomain>) type::getProtectionDomain);
+      String codebase = pd != null ? pdCodebase.get(pd) : null;
+      if (codebase == null) {
+        ByteCode code = byteCode.get(getByteCodeName(type.getName()));
+        codebase = code != null ? code.codebase : null;
+      }
+      return codebase;
+    }
+  };
+
+  // Concurrent for thread safety. The tables are filled by load() before any application code
+  // runs, after which lookups never block. Note that null keys are not permitted.
+  protected Map<String, ByteCode> byteCode = new ConcurrentHashMap<>();
+  protected Map<String, ProtectionDomain> pdCache = new ConcurrentHashMap<>();
+  // The reverse of pdCache, ProtectionDomain uses identity equality.
+  protected Map<ProtectionDomain, String> pdCodebase = new ConcurrentHashMap<>();
+  protected Map<String, String> binLibPath = new ConcurrentHashMap<>();
+  protected Map<String, Object> binLibLocks = new ConcurrentHashMap<>();
+  // Locks on the cached libraries, by lock file. A FileLock only excludes other VMs, threads of this VM (of
+  // any loader) trying to take it again get an OverlappingFileLockException instead of waiting.
+  protected static final Map<String, Object> CACHE_LOCKS = new ConcurrentHashMap<>();
+  protected Set<String> jarNames = ConcurrentHashMap.newKeySet();
+  // An inverted index of resources: entry name to the jar-local entries of every jar that has it, in jar
+  // order. The arrays are replaced rather than modified, so they can be read without locking, and
+  // jar-local lookups and findResources() don't need to build keys.
+  protected Map<String, ByteCode[]> resourceIndex = new ConcurrentHashMap<>();
+
+  // Provider class names by service, see getServiceProviders().
+  protected Map<String, List<String>> serviceProviders = new ConcurrentHashMap<>();
+  private static final ServiceIndex NO_SERVICE_INDEX = new ServiceIndex();
+  private volatile ServiceIndex serviceIndex;
+
+  // Packages seen while indexing in lazy mode, defined on first use.
+  protected Map<String, ByteCode> pendingPackages = new ConcurrentHashMap<>();
 
   protected String mainJar;
+  // Precedence of lib jars which are not stored in the order they were declared, see Boot.ONE_JAR_LIB_ORDER
+  protected Map<String, Integer> libOrder = Collections.emptyMap();
+  // Which packages look in the uno-jar before the parent, null for the normal parent first delegation.
+  protected DelegationPolicy delegation;
+  // Classes defined by this loader, for code which looks classes up by name over and over (Class.forName in
+  // serializers, ORMs and the like). Only these are kept: findLoadedClass would return them before any
+  // delegation anyway, while classes of other loaders would be pinned here and skip the delegation policy.
+  protected Map<String, Class<?>> loaded = new ConcurrentHashMap<>();
   protected boolean delegateToParent;
+  protected boolean lazy;
+  protected boolean mmap;
+  protected boolean parallel;
+  protected boolean release;
+  protected boolean background;
+  // Lib jars still being loaded in the background, null once they are all loaded.
+  protected volatile List<PendingJar> pendingJars;
+  // The thread loading lib jars in the background, if any, which completes loading when it is done.
+  protected volatile Thread backgroundLoader;
+  // Set once every jar has been loaded, see loadingComplete().
+  protected volatile boolean loadComplete;
+  // Names of classes and resources that could not be found by any loader, null unless running with
+  // uno-jar.miss.cache. Each is bounded by MISS_CACHE_SIZE, and cleared rather than evicted when full.
+  protected Set<String> missingClasses;
+  protected Set<String> missingResources;
+  protected static final int MISS_CACHE_SIZE = 8192;
+  // Records the classes and resources used, null unless running with uno-jar.record
+  protected Recorder recorder;
+  // Holds one copy of each distinct payload, outside the java heap if running with uno-jar.offheap
+  protected ContentStore contentStore;
+
+  // Inflaters are reused while loading, and released when loading completes.
+  protected final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
 
   protected static class ByteCode {
     public ByteCode(String name, String original, ByteArrayOutputStream baos, String codebase, Manifest manifest, int mrVersion) {
+      this(name, original, baos.toByteArray(), codebase, manifest, mrVersion);
+    }
+
+    public ByteCode(String name, String original, byte[] bytes, String codebase, Manifest manifest, int mrVersion) {
       this.name = name;
       this.original = original;
-      this.bytes = baos.toByteArray();
+      this.bytes = bytes;
+      this.codebase = codebase;
+      this.manifest = manifest;
+      this.mrVersion = mrVersion;
+    }
+
+    /**
+     * Create a ByteCode backed by an entry in a zip directory. If bytes is null they are read when first
+     * requested, entries stored without compression are then read in place rather than being copied.
+     */
+    public ByteCode(String name, ZipDirectory source, ZipDirectory.Entry entry, byte[] bytes, String codebase, Manifest manifest, int mrVersion) {
+      this.name = name;
+      this.original = entry.name;
+      this.source = source;
+      this.entry = entry;
+      this.bytes = bytes;
       this.codebase = codebase;
       this.manifest = manifest;
       this.mrVersion = mrVersion;
     }
 
-    public byte[] bytes;
+    public volatile byte[] bytes;
     public String name, original, codebase;
     public Manifest manifest;
     public int mrVersion;
+    protected ZipDirectory source;
+    protected ZipDirectory.Entry entry;
+    // Off-heap copy of the bytes, used instead of the bytes array when the store is off-heap.
+    protected volatile ByteBuffer buffer;
+    protected ContentStore store;
+    // Set once released, the bytes are then re-read from the source or inflated from the deflated copy.
+    protected volatile boolean released;
+    protected volatile byte[] deflated;
+    protected int length;
+
+    /**
+     * @return the bytes for this entry, inflating them from the containing jar if they have not been read yet.
+     */
+    public byte[] getBytes() {
+      byte[] result = bytes;
+      if (result == null) {
+        ByteBuffer stored = buffer;
+        if (stored != null) {
+          result = new byte[stored.remaining()];
+          stored.duplicate().get(result);
+          return result;
+        }
+        byte[] compressed = deflated;
+        if (compressed != null) {
+          return inflate(compressed, length);
+        }
+        result = read();
+        // Stored entries can be re-read in place, no need to hold a copy.
+        if (entry.method != ZipEntry.STORED && !released) {
+          if (store == null) {
+            bytes = result;
+          } else if (store.isOffHeap()) {
+            buffer = store.internDirect(result);
+          } else {
+            bytes = store.intern(result);
+          }
+        }
+      }
+      return result;
+    }
+
+    /**
+     * @return the number of bytes in this entry, without reading them
+     */
+    public long getLength() {
+      if (entry != null) {
+        return entry.size;
+      }
+      ByteBuffer stored = buffer;
+      if (stored != null) {
+        return stored.remaining();
+      }
+      byte[] heap = bytes;
+      return heap != null ? heap.length : length;
+    }
+
+    /**
+     * @return a read-only view of the bytes for this entry. For a stored entry in a mapped jar this is a slice
+     * of the mapping, and with an off-heap store it is a slice of the store.
+     */
+    public ByteBuffer getBuffer() {
+      ByteBuffer direct = getDirectBuffer();
+      if (direct != null) {
+        return direct;
+      }
+      if (bytes == null && entry != null && entry.method == ZipEntry.STORED) {
+        return getSourceBuffer();
+      }
+      return ByteBuffer.wrap(getBytes()).asReadOnlyBuffer();
+    }
+
+    /**
+     * @return a read-only view of the bytes for this entry if they are held off the heap, that is a stored
+     * entry in a mapped jar or any entry with an off-heap store, otherwise null without reading anything.
+     */
+    public ByteBuffer getDirectBuffer() {
+      ByteBuffer stored = buffer;
+      if (stored != null) {
+        return stored.duplicate();
+      }
+      if (bytes == null && entry != null) {
+        if (entry.method == ZipEntry.STORED) {
+          ByteBuffer source = getSourceBuffer();
+          return source.isDirect() ? source : null;
+        }
+        if (store != null && store.isOffHeap()) {
+          stored = store.internDirect(read());
+          buffer = stored;
+          return stored.duplicate();
+        }
+      }
+      return null;
+    }
+
+    private ByteBuffer getSourceBuffer() {
+      try {
+        return source.getBuffer(entry);
+      } catch (IOException iox) {
+        throw new UncheckedIOException("Unable to read " + original + " from " + codebase, iox);
+      }
+    }
+
+    /**
+     * Share the bytes (now, or when they are read later) with identical entries held in a store.
+     *
+     * @param store the store to hold the bytes
+     */
+    protected void internTo(ContentStore store) {
+      this.store = store;
+      byte[] heap = bytes;
+      if (heap != null) {
+        if (store.isOffHeap()) {
+          buffer = store.internDirect(heap);
+          bytes = null;
+        } else {
+          bytes = store.intern(heap);
+        }
+      }
+    }
+
+    /**
+     * Release the bytes held on the heap for this entry, typically once the class has been defined.
+     * Entries with a source are re-read from it when next requested, others are kept deflated.
+     */
+    protected void release() {
+      byte[] heap = bytes;
+      if (heap == null || released) {
+        return;
+      }
+      if (entry == null) {
+        length = heap.length;
+        deflated = deflate(heap);
+      }
+      released = true;
+      bytes = null;
+    }
+
+    private static byte[] deflate(byte[] bytes) {
+      Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+      try {
+        deflater.setInput(bytes);
+        deflater.finish();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(bytes.length / 2 + 16);
+        byte[] buf = new byte[Math.min(bytes.length + 16, BUFFER_SIZE)];
+        while (!deflater.finished()) {
+          baos.write(buf, 0, deflater.deflate(buf));
+        }
+        return baos.toByteArray();
+      } finally {
+        deflater.end();
+      }
+    }
+
+    private byte[] inflate(byte[] compressed, int length) {
+      Inflater inflater = new Inflater(true);
+      try {
+        inflater.setInput(compressed);
+        byte[] result = new byte[length];
+        int len = 0;
+        while (len < length) {
+          int n = inflater.inflate(result, len, length - len);
+          if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+            throw new DataFormatException("truncated");
+          }
+          len += n;
+        }
+        return result;
+      } catch (DataFormatException dfx) {
+        throw new UncheckedIOException("Unable to inflate " + original + " from " + codebase, new IOException(dfx));
+      } finally {
+        inflater.end();
+      }
+    }
+
+    private byte[] read() {
+      try {
+        return source.read(entry);
+      } catch (IOException iox) {
+        throw new UncheckedIOException("Unable to read " + original + " from " + codebase, iox);
+      }
+    }
   }
 
 
@@ -150,12 +456,59 @@ public class JarClassLoader extends ClassLoader implements IProperties {
     super(parent);
     this.oneJarPath = unoJarPath;
     delegateToParent = true;
+    lazy = getProperty(P_LAZY);
+    mmap = getProperty(P_MMAP);
+    parallel = getProperty(P_PARALLEL);
+    release = getProperty(P_RELEASE);
+    background = getProperty(P_BACKGROUND);
+    if (getProperty(P_MISS_CACHE)) {
+      missingClasses = ConcurrentHashMap.newKeySet();
+      missingResources = ConcurrentHashMap.newKeySet();
+    }
+    contentStore = new ContentStore(getProperty(P_OFFHEAP) ? new OffHeapStore() : null);
     setProperties(this);
+    if (getProperty(P_RECORD)) {
+      startRecording();
+    }
     init();
     // System.out.println(PREFIX() + this + " parent=" + parent + " loaded by " + this.getClass().getClassLoader());
   }
 
-  protected static ThreadLocal<String> current = new ThreadLocal<>();
+  // The name each external loader entry point is working on in this thread, to detect recursion without
+  // building a key for every call.
+  protected static final ThreadLocal<String> loadingClass = new ThreadLocal<>();
+  protected static final ThreadLocal<String> gettingResource = new ThreadLocal<>();
+  protected static final ThreadLocal<String> findingResource = new ThreadLocal<>();
+
+  /**
+   * @param name the name of a resource, or of a class file e.g. com/example/Foo.class
+   * @return true if there is an external class loader, and it may hold the named entry
+   */
+  protected boolean mayBeExternal(String name) {
+    return externalClassLoader != null && (externalIndex == null || externalIndex.mayContain(name));
+  }
+
+  /**
+   * Start recording a profile of the classes and resources used to the file named by uno-jar.record.file.
+   * The profile is completed when the VM exits.
+   */
+  protected void startRecording() {
+    File file = new File(replaceProps(System.getProperties(), System.getProperty(P_RECORD_FILE, RECORDING)));
+    try {
+      final Recorder recording = new Recorder(file, getProperty(P_JAR_NAMES));
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+        try {
+          recording.close();
+        } catch (IOException iox) {
+          System.err.println("Unable to complete recording " + file + ": " + iox);
+        }
+      }, "uno-jar-recorder"));
+      recorder = recording;
+      LOGGER.info("Recording to " + file.getAbsolutePath());
+    } catch (IOException iox) {
+      LOGGER.warning("Unable to record to " + file + ": " + iox);
+    }
+  }
 
   /**
    * Common initialization code: establishes a classloader for delegation
@@ -183,66 +536,61 @@ public class JarClassLoader extends ClassLoader implements IProperties {
       }
       final URL[] urls = list.toArray(new URL[0]);
       LOGGER.info("external URLs=" + Arrays.asList(urls));
+      externalIndex = new ClassPathIndex(urls);
       // BUG-2833948
       // Delegate back into this classloader, use ThreadLocal to avoid recursion.
       externalClassLoader = AccessController.doPrivileged(
           new PrivilegedAction<>() {
             public ClassLoader run() {
               return new URLClassLoader(urls, JarClassLoader.this) {
-                // Handle recursion for classes, and mutual recursion for resources.
-                final static String LOAD_CLASS = "loadClass():";
-                final static String GET_RESOURCE = "getResource():";
-                final static String FIND_RESOURCE = "findResource():";
-
                 // Protect entry points which could lead to recursion.  Strangely
                 // inelegant because you can't proxy a class.  Or use closures.
                 @SuppressWarnings("rawtypes")
                 public Class loadClass(String name) throws ClassNotFoundException {
-                  if (reentered(LOAD_CLASS + name)) {
+                  String old = loadingClass.get();
+                  if (name.equals(old)) {
                     throw new ClassNotFoundException(name);
                   }
-                  LOGGER.fine("externalClassLoader.loadClass(" + name + ")");
-                  String old = current.get();
-                  current.set(LOAD_CLASS + name);
+                  if (LOGGER.isLoggable(Logger.LOGLEVEL_VERBOSE)) {
+                    LOGGER.fine("externalClassLoader.loadClass(" + name + ")");
+                  }
+                  loadingClass.set(name);
                   try {
                     return super.loadClass(name);
                   } finally {
-                    current.set(old);
+                    loadingClass.set(old);
                   }
                 }
 
                 public URL getResource(String name) {
-                  if (reentered(GET_RESOURCE + name))
+                  String old = gettingResource.get();
+                  if (name.equals(old))
                     return null;
-                  LOGGER.fine("externalClassLoader.getResource(" + name + ")");
-                  String old = current.get();
-                  current.set(GET_RESOURCE + name);
+                  if (LOGGER.isLoggable(Logger.LOGLEVEL_VERBOSE)) {
+                    LOGGER.fine("externalClassLoader.getResource(" + name + ")");
+                  }
+                  gettingResource.set(name);
                   try {
                     return super.getResource(name);
                   } finally {
-                    current.set(old);
+                    gettingResource.set(old);
                   }
                 }
 
                 public URL findResource(String name) {
-                  if (reentered(FIND_RESOURCE + name))
+                  String old = findingResource.get();
+                  if (name.equals(old))
                     return null;
-                  LOGGER.fine("externalClassLoader.findResource(" + name + ")");
-                  String old = current.get();
-                  current.set(name);
+                  if (LOGGER.isLoggable(Logger.LOGLEVEL_VERBOSE)) {
+                    LOGGER.fine("externalClassLoader.findResource(" + name + ")");
+                  }
+                  findingResource.set(name);
                   try {
-                    current.set(FIND_RESOURCE + name);
                     return super.findResource(name);
                   } finally {
-                    current.set(old);
+                    findingResource.set(old);
                   }
                 }
-
-                protected boolean reentered(String name) {
-                  // Defend against null name: not sure about semantics there.
-                  Object old = current.get();
-                  return old != null && old.equals(name);
-                }
               };
             }
           });
@@ -257,12 +605,37 @@ public class JarClassLoader extends ClassLoader implements IProperties {
   public String load(String mainClass, String jarName) {
     LOGGER.fine("load(" + mainClass + "," + jarName + ")");
 
+    ForkJoinPool pool = parallel ? new ForkJoinPool(Runtime.getRuntime().availableProcessors()) : null;
     try {
       if (jarName == null) {
         jarName = oneJarPath;
       }
+      // Background loading needs random access to the lib jars, so it implies mapping.
+      File file = mmap || background ? toLocalFile(jarName) : null;
+      if (file != null) {
+        ZipDirectory mapped = null;
+        try {
+          mapped = mapJar(file);
+        } catch (IOException iox) {
+          LOGGER.info("Unable to map " + file + " (" + iox.getMessage() + "), reading it as a stream");
+        }
+        if (mapped != null) {
+          JarIndex index = readIndex(mapped);
+          if (index == null) {
+            index = getCachedIndex(file, mapped);
+          }
+          return loadMapped(mainClass, mapped, index, pool);
+        }
+      }
+      if (background) {
+        LOGGER.fine(P_BACKGROUND + " needs an uno-jar which can be mapped, loading every jar of " + jarName + " now");
+      }
+      List<Future<PreparedJar>> prepared = new ArrayList<>();
       JarInputStream jis = new JarInputStream(new URL(jarName).openConnection().getInputStream());
       Manifest manifest = jis.getManifest();
+      setLibOrder(manifest);
+      setDelegation(manifest);
+      expandLibraries(manifest);
       JarEntry entry;
       while ((entry = (JarEntry) jis.getNextEntry()) != null) {
         if (entry.isDirectory())
@@ -275,9 +648,20 @@ public class JarClassLoader extends ClassLoader implements IProperties {
           LOGGER.fine("caching " + $entry);
           LOGGER.fine("using jarFile.getInputStream(" + entry + ")");
 
+          if (pool != null) {
+            // Only the read happens here, indexing and inflating happen on the pool.
+            ByteBuffer bytes = ByteBuffer.wrap(readFully(jis, entry.getSize()));
+            prepared.add(pool.submit(() -> prepareJar(bytes, $entry)));
+            continue;
+          }
+
           // Note: loadByteCode consumes the input stream, so make sure its scope
           // does not extend beyond here.
-          loadByteCode(jis, $entry);
+          if (lazy) {
+            indexByteCode(jis, $entry);
+          } else {
+            loadByteCode(jis, $entry);
+          }
 
           // Do we need to look for a main class?
           if ($entry.startsWith(MAIN_PREFIX)) {
@@ -295,25 +679,682 @@ public class JarClassLoader extends ClassLoader implements IProperties {
             }
           }
         } else if ($entry.endsWith(CLASS)) {
+          // Keep registration in jar order.
+          mainClass = registerPrepared(prepared, mainClass);
           // A plain vanilla class file rooted at the top of the jar file.
           loadBytes(entry, jis, "/", manifest);
           LOGGER.fine("Uno-Jar class: " + jarName + "!/" + entry.getName());
         } else {
+          mainClass = registerPrepared(prepared, mainClass);
           // A resource?
           loadBytes(entry, jis, "/", manifest);
           LOGGER.fine("Uno-Jar resource: " + jarName + "!/" + entry.getName());
         }
       }
+      mainClass = registerPrepared(prepared, mainClass);
       // If mainClass is still not defined, return null.  The caller is then responsible
       // for determining a main class.
 
     } catch (IOException iox) {
       LOGGER.severe("Unable to load resource: " + iox);
       iox.printStackTrace(System.err);
+    } finally {
+      if (pool != null) {
+        pool.shutdown();
+      }
+      if (backgroundLoader == null) {
+        loadingComplete();
+      }
     }
     return mainClass;
   }
 
+  /**
+   * Release what was only needed while loading, once every jar has been loaded. With lib jars loading in
+   * the background this happens when the last of them has been loaded.
+   */
+  protected void loadingComplete() {
+    Inflater inflater;
+    while ((inflater = inflaters.poll()) != null) {
+      inflater.end();
+    }
+    LOGGER.info("cached " + contentStore.getStored() + " bytes, " + (contentStore.getRequested() - contentStore.getStored()) + " bytes shared");
+    loadComplete = true;
+  }
+
+  /**
+   * A nested jar that has been indexed, and unless lazy, inflated, but not yet registered with the
+   * classloader. Preparation may happen on any thread, registration happens in jar order.
+   */
+  protected static class PreparedJar {
+    protected final String jar;
+    protected final ByteBuffer bytes;
+    protected ZipDirectory dir;
+    protected Manifest manifest;
+    protected byte[][] inflated;
+
+    protected PreparedJar(String jar, ByteBuffer bytes) {
+      this.jar = jar;
+      this.bytes = bytes;
+    }
+  }
+
+  /**
+   * Index a nested jar and inflate its compressed entries (unless lazy). This does not touch the
+   * classloader's tables so it is safe to call concurrently for different jars.
+   *
+   * @param bytes the bytes of the nested jar
+   * @param jar   the name of the nested jar
+   * @return the prepared jar, if it could not be indexed it will have a null directory.
+   * @throws IOException if an entry cannot be inflated
+   */
+  protected PreparedJar prepareJar(ByteBuffer bytes, String jar) throws IOException {
+    return prepareJar(bytes, jar, null);
+  }
+
+  /**
+   * Prepare a nested jar whose entries may already be known from a {@link JarIndex}.
+   *
+   * @param bytes   the bytes of the nested jar
+   * @param jar     the name of the nested jar
+   * @param indexed the entries of the nested jar, or null to read its central directory
+   * @return the prepared jar, if it could not be indexed it will have a null directory.
+   * @throws IOException if an entry cannot be inflated
+   */
+  protected PreparedJar prepareJar(ByteBuffer bytes, String jar, List<ZipDirectory.Entry> indexed) throws IOException {
+    PreparedJar prepared = new PreparedJar(jar, bytes);
+    try {
+      prepared.dir = indexed != null ? new ZipDirectory(bytes, indexed) : new ZipDirectory(bytes);
+    } catch (IOException iox) {
+      LOGGER.info("Unable to index " + jar + " (" + iox.getMessage() + "), loading it from a stream");
+      return prepared;
+    }
+    Inflater inflater = inflaters.poll();
+    if (inflater == null) {
+      inflater = new Inflater(true);
+    }
+    try {
+      ZipDirectory.Entry mfEntry = prepared.dir.getEntry(MANIFEST);
+      if (mfEntry != null) {
+        prepared.manifest = new Manifest(new ByteArrayInputStream(prepared.dir.read(mfEntry, inflater)));
+      }
+      if (!lazy) {
+        List<ZipDirectory.Entry> entries = prepared.dir.getEntries();
+        prepared.inflated = new byte[entries.size()][];
+        for (int i = 0; i < prepared.inflated.length; i++) {
+          ZipDirectory.Entry entry = entries.get(i);
+          if (entry.method != ZipEntry.STORED) {
+            prepared.inflated[i] = prepared.dir.read(entry, inflater);
+          }
+        }
+      }
+    } finally {
+      inflaters.offer(inflater);
+    }
+    return prepared;
+  }
+
+  /**
+   * Register the entries of a prepared jar. Conflicting entries are resolved exactly as they are
+   * when loading sequentially, first jar wins.
+   *
+   * @param prepared the prepared jar
+   * @return the manifest of the jar or null if it has none
+   * @throws IOException if the jar could not be indexed and then can't be read as a stream.
+   */
+  protected Manifest registerPrepared(PreparedJar prepared) throws IOException {
+    if (prepared.dir == null) {
+      loadByteCode(new ByteBufferInputStream(prepared.bytes), prepared.jar);
+      return null;
+    }
+    if (prepared.manifest == null) {
+      LOGGER.warning("Null manifest from input stream associated with: " + prepared.jar);
+    }
+    List<ZipDirectory.Entry> entries = prepared.dir.getEntries();
+    for (int i = 0; i < entries.size(); i++) {
+      byte[] bytes = prepared.inflated == null ? null : prepared.inflated[i];
+      indexBytes(prepared.dir, entries.get(i), bytes, prepared.jar, prepared.manifest);
+    }
+    return prepared.manifest;
+  }
+
+  /**
+   * Wait for, and then register, jars prepared on the boot pool in the order they were submitted.
+   *
+   * @param pending   the jars being prepared, the list is cleared.
+   * @param mainClass the main class found so far
+   * @return the main class
+   * @throws IOException if a jar could not be read
+   */
+  protected String registerPrepared(List<Future<PreparedJar>> pending, String mainClass) throws IOException {
+    for (Future<PreparedJar> future : pending) {
+      PreparedJar prepared = getPrepared(future);
+      Manifest m = registerPrepared(prepared);
+      if (prepared.jar.startsWith(MAIN_PREFIX)) {
+        mainClass = findMainClass(mainClass, prepared.jar, m);
+      }
+    }
+    pending.clear();
+    return mainClass;
+  }
+
+  /**
+   * Jars reordered when the uno-jar was built (e.g. by a profile) list the order in which they were
+   * declared, which still decides which jar wins when they contain the same entry.
+   *
+   * @param manifest the manifest of the uno-jar, or null
+   */
+  protected void setLibOrder(Manifest manifest) {
+    String order = manifest == null ? null : manifest.getMainAttributes().getValue(Boot.ONE_JAR_LIB_ORDER);
+    if (order == null) {
+      return;
+    }
+    Map<String, Integer> ranks = new HashMap<>();
+    for (String jar : splitNames(order)) {
+      ranks.putIfAbsent(jar, ranks.size());
+    }
+    libOrder = ranks;
+  }
+
+  /**
+   * Split a list of entry names held by a manifest attribute, such as Boot.ONE_JAR_LIB_ORDER. The names
+   * are separated by whitespace, and any whitespace or '%' within a name is written as %XX (hex), so
+   * that names holding spaces survive. See Boot.HELP_ATTRIBUTES.
+   *
+   * @param list the value of the attribute
+   * @return the names, in the order they are listed
+   */
+  protected static List<String> splitNames(String list) {
+    List<String> names = new ArrayList<>();
+    for (String name : list.trim().split("\\s+")) {
+      if (!name.isEmpty()) {
+        names.add(decodeName(name));
+      }
+    }
+    return names;
+  }
+
+  private static String decodeName(String name) {
+    if (name.indexOf('%') < 0) {
+      return name;
+    }
+    StringBuilder decoded = new StringBuilder(name.length());
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      if (c == '%' && i + 2 < name.length()) {
+        int high = Character.digit(name.charAt(i + 1), 16);
+        int low = Character.digit(name.charAt(i + 2), 16);
+        if (high >= 0 && low >= 0) {
+          decoded.append((char) (high << 4 | low));
+          i += 2;
+          continue;
+        }
+      }
+      decoded.append(c);
+    }
+    return decoded.toString();
+  }
+
+  /**
+   * Set the delegation policy from uno-jar.delegation, or failing that the Uno-Jar-Delegation attribute of
+   * the uno-jar manifest. A policy which can't be parsed is ignored.
+   *
+   * @param manifest the manifest of the uno-jar, or null
+   */
+  protected void setDelegation(Manifest manifest) {
+    String spec = System.getProperty(P_DELEGATION);
+    if (spec == null && manifest != null) {
+      spec = manifest.getMainAttributes().getValue(Boot.ONE_JAR_DELEGATION);
+    }
+    if (spec == null) {
+      return;
+    }
+    try {
+      delegation = new DelegationPolicy(spec);
+      LOGGER.info("delegation policy: " + spec);
+    } catch (IllegalArgumentException iax) {
+      LOGGER.warning("Ignoring delegation policy: " + iax.getMessage());
+    }
+  }
+
+  /**
+   * @return true if jar was declared before other, so that its entries hide those of other
+   */
+  protected boolean outranks(String jar, String other) {
+    Integer rank = libOrder.get(jar);
+    Integer otherRank = libOrder.get(other);
+    return rank != null && otherRank != null && rank < otherRank;
+  }
+
+  private PreparedJar getPrepared(Future<PreparedJar> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException ix) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while loading jars");
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof IOException) {
+        throw (IOException) ex.getCause();
+      }
+      throw new IOException("Unable to load " + ex.getCause(), ex.getCause());
+    }
+  }
+
+  private String findMainClass(String mainClass, String jar, Manifest m) {
+    if (mainClass == null) {
+      if (m != null) {
+        mainClass = m.getMainAttributes().getValue(Attributes.Name.MAIN_CLASS);
+        mainJar = jar;
+      }
+    } else if (mainJar != null) {
+      LOGGER.warning("A main class is defined in multiple jar files inside " + MAIN_PREFIX + mainJar + " and " + jar);
+      LOGGER.warning("The main class " + mainClass + " from " + mainJar + " will be used");
+    }
+    return mainClass;
+  }
+
+  /**
+   * Read the remainder of a stream, presizing the result when the size is known.
+   *
+   * @param is   the stream to read, which is not closed
+   * @param size the expected number of bytes, or -1 if unknown
+   * @return the bytes read
+   * @throws IOException if the stream can't be read
+   */
+  protected byte[] readFully(InputStream is, long size) throws IOException {
+    if (size >= 0 && size < Integer.MAX_VALUE) {
+      byte[] bytes = new byte[(int) size];
+      int len = is.readNBytes(bytes, 0, bytes.length);
+      if (len != bytes.length) {
+        throw new EOFException("Expected " + size + " bytes but found " + len);
+      }
+      return bytes;
+    }
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(BUFFER_SIZE);
+    byte[] buf = new byte[BUFFER_SIZE];
+    int len;
+    while ((len = is.read(buf)) >= 0) {
+      baos.write(buf, 0, len);
+    }
+    return baos.toByteArray();
+  }
+
+  /**
+   * Load from a jar that has been mapped into memory. Entries of nested jars which are stored without
+   * compression in the outer jar are addressed in place, and are never copied onto the heap.
+   *
+   * @param mainClass the main class, or null if it should be found in the manifest of a main jar
+   * @param jar       the directory of the mapped outer jar
+   * @param pool      the pool on which to prepare nested jars, or null to load sequentially
+   * @return the main class
+   * @throws IOException if the mapped jar cannot be read
+   */
+  protected String loadMapped(String mainClass, ZipDirectory jar, ForkJoinPool pool) throws IOException {
+    return loadMapped(mainClass, jar, readIndex(jar), pool);
+  }
+
+  /**
+   * Load from a mapped jar, using an index of its nested jars.
+   *
+   * @param mainClass the main class, or null if it should be found in the manifest of a main jar
+   * @param jar       the directory of the mapped outer jar
+   * @param index     the index of the nested jars, or null if they should be scanned
+   * @param pool      the pool on which to prepare nested jars, or null to load sequentially
+   * @return the main class
+   * @throws IOException if the mapped jar cannot be read
+   */
+  protected String loadMapped(String mainClass, ZipDirectory jar, JarIndex index, ForkJoinPool pool) throws IOException {
+    List<Future<PreparedJar>> prepared = new ArrayList<>();
+    Manifest manifest = null;
+    ZipDirectory.Entry mfEntry = jar.getEntry(MANIFEST);
+    if (mfEntry != null) {
+      manifest = new Manifest(new ByteBufferInputStream(jar.getBuffer(mfEntry)));
+    }
+    setLibOrder(manifest);
+    setDelegation(manifest);
+    expandLibraries(manifest);
+    List<PendingJar> deferred = new ArrayList<>();
+    for (ZipDirectory.Entry entry : jar.getEntries()) {
+      // The top level manifest is not visible when reading as a stream either.
+      if (entry.isDirectory() || entry == mfEntry)
+        continue;
+
+      String $entry = entry.name;
+      if (background && $entry.startsWith(LIB)) {
+        deferred.add(new PendingJar(entry, getIndexedEntries(index, entry)));
+        continue;
+      }
+      if ($entry.startsWith(LIB) || $entry.startsWith(MAIN_PREFIX)) {
+        List<ZipDirectory.Entry> indexed = getIndexedEntries(index, entry);
+        LOGGER.fine("mapping " + $entry + (entry.method == ZipEntry.STORED ? "" : " (compressed, inflating it)")
+            + (indexed != null ? " (indexed)" : ""));
+        if (pool != null) {
+          prepared.add(pool.submit(() -> prepareJar(jar.getBuffer(entry), $entry, indexed)));
+          continue;
+        }
+        Manifest m = registerPrepared(prepareJar(jar.getBuffer(entry), $entry, indexed));
+        if ($entry.startsWith(MAIN_PREFIX)) {
+          mainClass = findMainClass(mainClass, $entry, m);
+        }
+      } else {
+        mainClass = registerPrepared(prepared, mainClass);
+        indexBytes(jar, entry, null, "/", manifest);
+        LOGGER.fine("Uno-Jar entry: " + $entry);
+      }
+    }
+    mainClass = registerPrepared(prepared, mainClass);
+    if (!deferred.isEmpty()) {
+      loadInBackground(jar, deferred);
+    }
+    return mainClass;
+  }
+
+  /**
+   * A lib jar which is being loaded in the background.
+   */
+  protected static class PendingJar {
+    protected final ZipDirectory.Entry entry;
+    protected final List<ZipDirectory.Entry> indexed;
+    // The names of the entries in the jar, and the directories holding them, or null if they are not
+    // known until it is loaded.
+    protected final Set<String> names;
+    protected final Set<String> packages;
+    protected final CompletableFuture<Void> loaded = new CompletableFuture<>();
+
+    protected PendingJar(ZipDirectory.Entry entry, List<ZipDirectory.Entry> indexed) {
+      this.entry = entry;
+      this.indexed = indexed;
+      if (indexed != null) {
+        names = new HashSet<>(indexed.size() * 2);
+        packages = new HashSet<>();
+        for (ZipDirectory.Entry e : indexed) {
+          String name = e.isDirectory() ? e.name.substring(0, e.name.length() - 1) : e.name;
+          names.add(name);
+          int slash = name.lastIndexOf('/');
+          if (slash > 0) {
+            packages.add(name.substring(0, slash));
+          }
+        }
+      } else {
+        names = null;
+        packages = null;
+      }
+    }
+
+    /**
+     * @param path the name of a package as a path, e.g. com/example
+     * @return true if this jar may hold classes or resources in the package
+     */
+    protected boolean mayHoldPackage(String path) {
+      return packages == null || packages.contains(path) || names.contains(path);
+    }
+
+    /**
+     * @return true if this jar may hold the named entry, either by its global name or its jar-local name.
+     */
+    protected boolean mayContain(String name) {
+      return names == null || names.contains(name) || name.startsWith(entry.name + "/");
+    }
+  }
+
+  /**
+   * Load lib jars on a background thread, in order, so that the application can start before they are
+   * all loaded. Lookups of entries that may be in a jar which has not been loaded yet wait for that jar,
+   * see {@link #awaitLoaded(String)}.
+   *
+   * @param jar  the directory of the mapped outer jar
+   * @param libs the lib jars to load
+   */
+  protected void loadInBackground(ZipDirectory jar, List<PendingJar> libs) {
+    pendingJars = libs;
+    Thread loader = new Thread(() -> {
+      ForkJoinPool pool = parallel ? new ForkJoinPool(Runtime.getRuntime().availableProcessors()) : null;
+      try {
+        List<Future<PreparedJar>> prepared = new ArrayList<>();
+        for (PendingJar lib : libs) {
+          if (pool != null) {
+            prepared.add(pool.submit(() -> prepareJar(jar.getBuffer(lib.entry), lib.entry.name, lib.indexed)));
+          }
+        }
+        for (int i = 0; i < libs.size(); i++) {
+          PendingJar lib = libs.get(i);
+          if (pool != null) {
+            registerPrepared(getPrepared(prepared.get(i)));
+          } else {
+            registerPrepared(prepareJar(jar.getBuffer(lib.entry), lib.entry.name, lib.indexed));
+          }
+          lib.loaded.complete(null);
+          LOGGER.fine("loaded " + lib.entry.name + " in the background");
+        }
+      } catch (Throwable t) {
+        LOGGER.severe("Unable to load lib jars: " + t);
+        t.printStackTrace(System.err);
+      } finally {
+        pendingJars = null;
+        for (PendingJar lib : libs) {
+          lib.loaded.complete(null);
+        }
+        if (pool != null) {
+          pool.shutdown();
+        }
+        loadingComplete();
+      }
+    }, "uno-jar-background-loader");
+    loader.setDaemon(true);
+    backgroundLoader = loader;
+    loader.start();
+  }
+
+  /**
+   * Wait until every lib jar which may hold the named entry has been loaded. Returns immediately if
+   * nothing is being loaded in the background. Without an index of the lib jars, this waits for all
+   * of them.
+   *
+   * @param name the name of an entry, or of an entry prefixed by its jar
+   */
+  protected void awaitLoaded(String name) {
+    List<PendingJar> pending = pendingJars;
+    if (pending == null) {
+      return;
+    }
+    if (name.startsWith("/")) {
+      name = name.substring(1);
+    }
+    for (PendingJar lib : pending) {
+      if (!lib.loaded.isDone() && lib.mayContain(name)) {
+        LOGGER.fine("waiting for " + lib.entry.name + " to load " + name);
+        lib.loaded.join();
+      }
+    }
+  }
+
+  /**
+   * Wait until every lib jar which may hold the named package has been loaded, so that its sealing and
+   * version are known. Returns immediately if nothing is being loaded in the background.
+   *
+   * @param name the name of a package, e.g. com.example
+   */
+  protected void awaitPackage(String name) {
+    List<PendingJar> pending = pendingJars;
+    if (pending == null) {
+      return;
+    }
+    String path = name.replace('.', '/');
+    for (PendingJar lib : pending) {
+      if (!lib.loaded.isDone() && lib.mayHoldPackage(path)) {
+        LOGGER.fine("waiting for " + lib.entry.name + " to load package " + name);
+        lib.loaded.join();
+      }
+    }
+  }
+
+  /**
+   * Read the index written into the uno-jar when it was built.
+   *
+   * @param jar the directory of the outer jar
+   * @return the index, or null if there is none or it can't be read
+   */
+  protected JarIndex readIndex(ZipDirectory jar) {
+    ZipDirectory.Entry entry = jar.getEntry(JarIndex.NAME);
+    if (entry == null) {
+      return null;
+    }
+    try {
+      return JarIndex.read(new ByteBufferInputStream(jar.getBuffer(entry)));
+    } catch (IOException | RuntimeException ex) {
+      LOGGER.warning("Unable to read " + JarIndex.NAME + " (" + ex.getMessage() + "), nested jars will be scanned");
+      return null;
+    }
+  }
+
+  /**
+   * Find the index of a jar built without one in the cache under uno-jar.expand.dir, creating it if it
+   * is not there yet. Cached indexes are named for the size, modification time and a checksum of the
+   * central directory of the jar, so a rebuilt jar never uses the index of its predecessor.
+   *
+   * @param file the outer jar
+   * @param jar  the directory of the outer jar
+   * @return the index, or null if no expand directory is configured
+   */
+  protected JarIndex getCachedIndex(File file, ZipDirectory jar) {
+    File dir = getExpandDir();
+    if (dir == null) {
+      return null;
+    }
+    File cached = new File(new File(dir, "index"), getIndexKey(file, jar) + ".idx");
+    if (cached.isFile()) {
+      try (FileChannel channel = FileChannel.open(cached.toPath(), StandardOpenOption.READ)) {
+        JarIndex index = JarIndex.read(new ByteBufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())));
+        LOGGER.fine("Using cached index " + cached);
+        return index;
+      } catch (IOException | RuntimeException ex) {
+        // Whatever is wrong with the file, it is only a cache.
+        LOGGER.info("Unable to read cached index " + cached + " (" + ex + "), replacing it");
+      }
+    }
+    JarIndex index = scanIndex(jar);
+    Path tmp = null;
+    try {
+      Files.createDirectories(cached.getParentFile().toPath());
+      tmp = Files.createTempFile(cached.getParentFile().toPath(), cached.getName(), ".tmp");
+      try (OutputStream os = Files.newOutputStream(tmp)) {
+        index.write(os);
+      }
+      try {
+        Files.move(tmp, cached.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException amx) {
+        Files.move(tmp, cached.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+      LOGGER.fine("Cached index at " + cached);
+    } catch (IOException iox) {
+      LOGGER.info("Unable to cache index at " + cached + " (" + iox.getMessage() + ")");
+      if (tmp != null) {
+        tmp.toFile().delete();
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Index the nested jars of the outer jar. Compressed nested jars are inflated to read their
+   * directories, which costs an extra inflation the one time the index is built, not when it is reused.
+   *
+   * @param jar the directory of the outer jar
+   * @return the index
+   */
+  protected JarIndex scanIndex(ZipDirectory jar) {
+    JarIndex index = new JarIndex();
+    for (ZipDirectory.Entry entry : jar.getEntries()) {
+      if (!entry.isDirectory() && (entry.name.startsWith(LIB) || entry.name.startsWith(MAIN_PREFIX))) {
+        try {
+          index.add(entry.name, entry.size, entry.crc, new ZipDirectory(jar.getBuffer(entry)).getEntries());
+        } catch (IOException iox) {
+          LOGGER.fine("Unable to index " + entry.name + " (" + iox.getMessage() + ")");
+        }
+      }
+    }
+    return index;
+  }
+
+  /**
+   * @return a name identifying this version of the jar
+   */
+  protected String getIndexKey(File file, ZipDirectory jar) {
+    CRC32 crc = new CRC32();
+    ByteBuffer buf = ByteBuffer.allocate(24);
+    for (ZipDirectory.Entry entry : jar.getEntries()) {
+      crc.update(entry.name.getBytes(StandardCharsets.UTF_8));
+      buf.clear();
+      buf.putLong(entry.crc).putLong(entry.size).putLong(entry.headerOffset).flip();
+      crc.update(buf);
+    }
+    return Long.toHexString(file.length()) + "-" + Long.toHexString(file.lastModified()) + "-" + Long.toHexString(crc.getValue());
+  }
+
+  /**
+   * @return the directory configured with uno-jar.expand.dir, or null if there is none
+   */
+  protected File getExpandDir() {
+    String dir = System.getProperty(P_EXPAND_DIR);
+    if (dir == null || dir.isEmpty()) {
+      return null;
+    }
+    return new File(replaceProps(System.getProperties(), dir));
+  }
+
+  /**
+   * @param index an index, or null
+   * @param entry the entry of a nested jar in the outer jar
+   * @return the indexed entries of the nested jar, or null if they are not indexed or the index is out of date
+   */
+  protected List<ZipDirectory.Entry> getIndexedEntries(JarIndex index, ZipDirectory.Entry entry) {
+    JarIndex.Jar indexed = index == null ? null : index.getJar(entry.name);
+    if (indexed == null) {
+      return null;
+    }
+    if (!indexed.matches(entry.size, entry.crc)) {
+      LOGGER.info(JarIndex.NAME + " does not match " + entry.name + ", scanning it instead");
+      return null;
+    }
+    return indexed.entries;
+  }
+
+  /**
+   * Map a local jar file into memory and read its central directory.
+   *
+   * @param file the jar file
+   * @return the directory of the mapped jar
+   * @throws IOException if the file cannot be mapped, or is not a zip file we can read in place
+   */
+  protected ZipDirectory mapJar(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("too large to map (" + size + " bytes)");
+      }
+      return new ZipDirectory(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+    }
+  }
+
+  /**
+   * @param jarName the URL of a jar
+   * @return the jar as a File if it is an existing local file, otherwise null.
+   */
+  protected static File toLocalFile(String jarName) {
+    try {
+      URI uri = new URI(jarName);
+      if ("file".equals(uri.getScheme())) {
+        File file = new File(uri);
+        if (file.isFile()) {
+          return file;
+        }
+      }
+    } catch (URISyntaxException | IllegalArgumentException x) {
+      LOGGER.fine("Not a local file: " + jarName);
+    }
+    return null;
+  }
+
   public static String replaceProps(Map<Object, Object> replace, String string) {
     // Map above takes System props arg and Properties extends Hashtable<Object,Object> :(
 
@@ -335,7 +1376,6 @@ public class JarClassLoader extends ClassLoader implements IProperties {
   protected void loadByteCode(InputStream is, String jar) throws IOException {
     JarInputStream jis = new JarInputStream(is);
     JarEntry entry;
-    // TODO: implement lazy loading of bytecode.
     Manifest manifest = jis.getManifest();
     if (manifest == null) {
       LOGGER.warning("Null manifest from input stream associated with: " + jar);
@@ -355,6 +1395,64 @@ public class JarClassLoader extends ClassLoader implements IProperties {
 
   }
 
+  /**
+   * Lazy alternative to {@link #loadByteCode(InputStream, String)}. The nested jar is held in its
+   * compressed form, and only its central directory is read. Entries are inflated when they are first
+   * requested, and packages are defined when they are first used.
+   *
+   * @param is  the stream of bytes for the nested jar, which is consumed
+   * @param jar the name of the nested jar
+   * @throws IOException if the stream cannot be read
+   */
+  protected void indexByteCode(InputStream is, String jar) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    copy(is, baos);
+    indexByteCode(ByteBuffer.wrap(baos.toByteArray()), jar);
+  }
+
+  /**
+   * Index a nested jar held in a buffer. Unless running in lazy mode, compressed entries are inflated
+   * immediately.
+   *
+   * @param bytes the bytes of the nested jar
+   * @param jar   the name of the nested jar
+   * @return the manifest of the nested jar, or null if it has none (or could not be indexed)
+   * @throws IOException if the nested jar cannot be read
+   */
+  protected Manifest indexByteCode(ByteBuffer bytes, String jar) throws IOException {
+    return registerPrepared(prepareJar(bytes, jar));
+  }
+
+  /**
+   * Alternative to {@link #loadBytes(JarEntry, InputStream, String, Manifest)} for indexed jars, the entry is
+   * registered under the same names, but if bytes is null they are not read until requested.
+   */
+  protected void indexBytes(ZipDirectory dir, ZipDirectory.Entry entry, byte[] bytes, String jar, Manifest man) {
+    String entryName = entry.name;
+    if (entryName.endsWith(CLASS)) {
+      int index2 = entryName.lastIndexOf('/');
+      if (index2 > -1) {
+        pendingPackages.computeIfAbsent(entryName.substring(0, index2).replace('/', '.'),
+            pkg -> new ByteCode(entry.name, dir, entry, null, jar, man, 8));
+      }
+      if (alreadyCached(entryName, jar, entry)) return;
+      cacheBytes(man, entryName, (name, mrVersion) -> new ByteCode(name, dir, entry, bytes, jar, man, mrVersion));
+      LOGGER.fine("indexed class " + entryName);
+    } else {
+      if (entryName.endsWith("/")) {
+        entryName = entryName.substring(0, entryName.length() - 1);
+      }
+      BiFunction<String, Integer, ByteCode> factory = (name, mrVersion) ->
+          new ByteCode(name, dir, entry, bytes, jar, man, mrVersion);
+      cacheLocalBytes(man, jar, entryName, factory);
+      jarNames.add(jar);
+      LOGGER.fine("indexed local name " + jar + "/" + entryName);
+      if (alreadyCached(entryName, jar, entry)) return;
+      cacheBytes(man, entryName, factory);
+      LOGGER.fine("indexed entry name " + entryName);
+    }
+  }
+
   protected void loadBytes(JarEntry entry, InputStream is, String jar, Manifest man) throws IOException {
     String entryName = entry.getName();
     int index = entryName.lastIndexOf('.');
@@ -381,13 +1479,17 @@ public class JarClassLoader extends ClassLoader implements IProperties {
     // the size of the entries is.  So we store them dynamically.
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
     copy(is, baos);
+    // Copied once for every name it is cached under, see newByteCode.
+    byte[] bytes = baos.toByteArray();
 
     // If entry is a class, check to see that it hasn't been defined
     // already.  Class names must be unique within a classloader because
     // they are cached inside the VM until the classloader is released.
+    BiFunction<String, Integer, ByteCode> factory = (name, mrVersion) ->
+        new ByteCode(name, entry.getName(), bytes, jar, man, mrVersion);
     if (type.equals("class")) {
-      if (alreadyCached(entryName, jar, baos)) return;
-      cacheBytes(entry, jar, man, entryName, baos);
+      if (alreadyCached(entryName, jar, bytes)) return;
+      cacheBytes(man, entryName, factory);
       LOGGER.fine("cached bytes for class " + entryName);
     } else {
       // https://github.com/nsoft/uno-jar/issues/10 - package names must not end in /
@@ -398,17 +1500,16 @@ public class JarClassLoader extends ClassLoader implements IProperties {
       // Another kind of resource.  Cache this by name, and also prefixed
       // by the jar name.  Don't duplicate the bytes.  This allows us
       // to map resource lookups to either jar-local, or globally defined.
-      String localname = jar + "/" + entryName;
-      cacheBytes(entry, jar, man, localname, baos);
+      cacheLocalBytes(man, jar, entryName, factory);
       // Keep a set of jar names so we can do multiple-resource lookup by name
       // as in findResources().
       jarNames.add(jar);
-      LOGGER.fine("cached bytes for local name " + localname);
+      LOGGER.fine("cached bytes for local name " + jar + "/" + entryName);
       // Only keep the first non-local entry: this is like classpath where the first
       // to define wins.
-      if (alreadyCached(entryName, jar, baos)) return;
+      if (alreadyCached(entryName, jar, bytes)) return;
 
-      cacheBytes(entry, jar, man, entryName, baos);
+      cacheBytes(man, entryName, factory);
       LOGGER.fine("cached bytes for entry name " + entryName);
 
     }
@@ -417,14 +1518,14 @@ public class JarClassLoader extends ClassLoader implements IProperties {
   /**
    * Cache the bytecode or other bytes. Multi-release resources overwrite their original entries.
    *
-   * @param entry     The JarEntry from which to read bytes
-   * @param jar       The name of the jar file
    * @param man       The manifest from the jar file
    * @param entryName The name of the entry used as a key in the cache
-   * @param baos      The stream to which bytes have been read.
+   * @param factory   Creates the ByteCode for a given key and multi-release version.
+   * @return the key the entry was cached under, which omits any multi-release version directory
    */
-  private void cacheBytes(JarEntry entry, String jar, Manifest man, String entryName, ByteArrayOutputStream baos) {
+  private String cacheBytes(Manifest man, String entryName, BiFunction<String, Integer, ByteCode> factory) {
     boolean multiRelease = man != null && Boolean.TRUE.toString().equals(man.getMainAttributes().getValue(MULTI_RELEASE));
+    boolean versioned = false;
     if (multiRelease) {
       String jVer = System.getProperty("java.version");
       //noinspection StatementWithEmptyBody
@@ -439,47 +1540,203 @@ public class JarClassLoader extends ClassLoader implements IProperties {
         if (m.find()) {
           //System.out.println(entryName);
           int mrVer = Integer.parseInt(m.group(1));
+          versioned = true;
           m.reset();
           entryName = m.replaceAll("");
           ByteCode byteCode = this.byteCode.get(entryName);
           if (byteCode != null) {
             int oldVer = byteCode.mrVersion;
             if (mrVer > oldVer && mrVer <= Integer.parseInt(jVer)) {
-              this.byteCode.put(entryName, new ByteCode(entryName, entry.getName(), baos, jar, man, mrVer));
-              return;
+              this.byteCode.put(entryName, newByteCode(factory, entryName, mrVer));
+              return entryName;
             }
           }
         }
-      } else {
-        // java 8 or earlier, ignore
+      } else {
+        // java 8 or earlier, ignore
+      }
+    }
+
+    ByteCode created = newByteCode(factory, entryName, 8);
+    if (versioned) {
+      byteCode.putIfAbsent(entryName, created);
+    } else {
+      // First wins, unless the jars were reordered and this one was declared first.
+      byteCode.merge(entryName, created, (existing, replacement) ->
+          outranks(replacement.codebase, existing.codebase) ? replacement : existing);
+    }
+    return entryName;
+  }
+
+  /**
+   * Cache a resource under its jar-local name, jar + "/" + entryName, and in {@link #resourceIndex}.
+   */
+  private void cacheLocalBytes(Manifest man, String jar, String entryName, BiFunction<String, Integer, ByteCode> factory) {
+    String localname = cacheBytes(man, jar + "/" + entryName, factory);
+    ByteCode cached = byteCode.get(localname);
+    if (cached != null) {
+      resourceIndex.compute(localname.substring(jar.length() + 1), (name, jars) -> addToIndex(jars, cached));
+    }
+  }
+
+  /**
+   * @return a copy of jars with the entry added, replacing any entry from the same jar (as a multi-release
+   * version replaces its base entry). Jars listed in the lib order keep that order, others are appended.
+   */
+  private ByteCode[] addToIndex(ByteCode[] jars, ByteCode entry) {
+    if (jars == null) {
+      return new ByteCode[]{entry};
+    }
+    for (int i = 0; i < jars.length; i++) {
+      if (jars[i].codebase.equals(entry.codebase)) {
+        ByteCode[] result = jars.clone();
+        result[i] = entry;
+        return result;
+      }
+    }
+    int at = jars.length;
+    while (at > 0 && outranks(entry.codebase, jars[at - 1].codebase)) {
+      at--;
+    }
+    ByteCode[] result = new ByteCode[jars.length + 1];
+    System.arraycopy(jars, 0, result, 0, at);
+    result[at] = entry;
+    System.arraycopy(jars, at, result, at + 1, jars.length - at);
+    return result;
+  }
+
+  /**
+   * Create a ByteCode whose bytes are shared with any identical entry already cached.
+   */
+  private ByteCode newByteCode(BiFunction<String, Integer, ByteCode> factory, String entryName, int mrVersion) {
+    ByteCode result = factory.apply(entryName, mrVersion);
+    result.internTo(contentStore);
+    return result;
+  }
+
+  /**
+   * Override to ensure that this classloader is the thread context classloader
+   * when used to load a class.  Avoids subtle, nasty problems.
+   */
+  @SuppressWarnings("rawtypes")
+  public Class loadClass(String name, boolean resolve) throws ClassNotFoundException {
+    // Set the context classloader in case any classloaders delegate to it.
+    // Otherwise it would default to the sun.misc.Launcher$AppClassLoader which
+    // is used to launch the jar application, and attempts to load through
+    // it would fail if that code is encapsulated inside the uno-jar.
+    // Threads which already have a suitable context classloader (nearly all of them after their first
+    // class) only pay for the identity check.
+    Thread thread = Thread.currentThread();
+    ClassLoader context = thread.getContextClassLoader();
+    if (context != this && !isJarClassLoaderAParent(context)) {
+      setContextClassLoader(thread);
+    }
+    // Classes already defined here need neither the class loading lock, findLoadedClass (a native call) nor
+    // another trip up the hierarchy.
+    Class cls = loaded.get(name);
+    if (cls != null) {
+      if (resolve) {
+        resolveClass(cls);
+      }
+      return cls;
+    }
+    if (missingClasses != null && missingClasses.contains(name)) {
+      // Unless it has been defined since (by defineClass, Lookup.defineClass or a subclass).
+      cls = findLoadedClass(name);
+      if (cls == null) {
+        throw new ClassNotFoundException(name);
+      }
+      missingClasses.remove(name);
+      loaded.putIfAbsent(name, cls);
+      if (resolve) {
+        resolveClass(cls);
+      }
+      return cls;
+    }
+    try {
+      cls = delegation == null ? super.loadClass(name, resolve) : loadClass(delegation.routeClass(name), name, resolve);
+      if (cls.getClassLoader() == this) {
+        loaded.putIfAbsent(name, cls);
+      }
+      return cls;
+    } catch (ClassNotFoundException cnfx) {
+      if (missingClasses != null) {
+        recordMiss(missingClasses, name);
+      }
+      throw cnfx;
+    }
+  }
+
+  /**
+   * Load a class along the route the delegation policy chose for its package.
+   */
+  @SuppressWarnings("rawtypes")
+  protected Class loadClass(DelegationPolicy.Route route, String name, boolean resolve) throws ClassNotFoundException {
+    ClassLoader parent = getParent();
+    if (route == DelegationPolicy.Route.PLATFORM && parent != null) {
+      // Only the platform can define these, there is no point in looking anywhere else.
+      return parent.loadClass(name);
+    }
+    if (route != DelegationPolicy.Route.LOCAL) {
+      return super.loadClass(name, resolve);
+    }
+    synchronized (getClassLoadingLock(name)) {
+      Class cls = findLoadedClass(name);
+      if (cls == null) {
+        String cache = getByteCodeName(name);
+        awaitLoaded(cache);
+        if (byteCode.containsKey(cache) || mayBeExternal(cache)) {
+          try {
+            cls = findClass(name);
+          } catch (ClassNotFoundException cnfx) {
+            // continue with the parent...
+          }
+        }
+        if (cls == null) {
+          // Not ours, so the parent must have it.
+          return super.loadClass(name, resolve);
+        }
       }
+      if (resolve) {
+        resolveClass(cls);
+      }
+      return cls;
     }
-
-    byteCode.putIfAbsent(entryName, new ByteCode(entryName, entry.getName(), baos, jar, man, 8));
   }
 
   /**
-   * Override to ensure that this classloader is the thread context classloader
-   * when used to load a class.  Avoids subtle, nasty problems.
+   * Remember that a class or resource could not be found, so that the next attempt fails without asking
+   * every loader again. Nothing is remembered until every jar has been loaded, since lookups made while
+   * loading (e.g. of the URL factory named by the manifest) may be for entries that are not cached yet.
    */
-  @SuppressWarnings("rawtypes")
-  public Class loadClass(String name, boolean resolve) throws ClassNotFoundException {
-    // Set the context classloader in case any classloaders delegate to it.
-    // Otherwise it would default to the sun.misc.Launcher$AppClassLoader which
-    // is used to launch the jar application, and attempts to load through
-    // it would fail if that code is encapsulated inside the uno-jar.
-    if (!isJarClassLoaderAParent(Thread.currentThread().getContextClassLoader())) {
-      AccessController.doPrivileged((PrivilegedAction<Class>) () -> {
-        Thread.currentThread().setContextClassLoader(JarClassLoader.this);
-        return null;
-      });
+  protected void recordMiss(Set<String> misses, String name) {
+    if (!loadComplete) {
+      return;
     }
-    return super.loadClass(name, resolve);
+    if (misses.size() >= MISS_CACHE_SIZE) {
+      misses.clear();
+    }
+    misses.add(name);
   }
 
   public boolean isJarClassLoaderAParent(ClassLoader loader) {
-    return loader instanceof JarClassLoader
-        || loader.getParent() != null && isJarClassLoaderAParent(loader.getParent());
+    for (; loader != null; loader = loader.getParent()) {
+      if (loader instanceof JarClassLoader) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void setContextClassLoader(Thread thread) {
+    if (System.getSecurityManager() == null) {
+      thread.setContextClassLoader(this);
+      return;
+    }
+    AccessController.doPrivileged((PrivilegedAction<Void>) () -> {
+      thread.setContextClassLoader(JarClassLoader.this);
+      return null;
+    });
   }
 
   /**
@@ -488,9 +1745,10 @@ public class JarClassLoader extends ClassLoader implements IProperties {
    */
   @SuppressWarnings("rawtypes")
   protected Class findClass(String name) throws ClassNotFoundException {
+    String cache = getByteCodeName(name);
     // Delegate to external paths first
     Class cls;
-    if (externalClassLoader != null) {
+    if (mayBeExternal(cache)) {
       try {
         return externalClassLoader.loadClass(name);
       } catch (ClassNotFoundException cnfx) {
@@ -504,11 +1762,19 @@ public class JarClassLoader extends ClassLoader implements IProperties {
 
     // Look up the class in the byte codes.
     // Translate path?
-    LOGGER.fine("findClass(" + name + ")");
-    String cache = name.replace('.', '/') + CLASS;
+    if (LOGGER.isLoggable(Logger.LOGLEVEL_VERBOSE)) {
+      LOGGER.fine("findClass(" + name + ")");
+    }
     ByteCode bytecode = byteCode.get(cache);
+    if (bytecode == null || !libOrder.isEmpty()) {
+      // Unless jars were reordered, a class already found can't be hidden by a jar loaded later.
+      awaitLoaded(cache);
+      bytecode = byteCode.get(cache);
+    }
     if (bytecode != null) {
-      LOGGER.fine("found " + name + " in codebase '" + bytecode.codebase + "'");
+      if (LOGGER.isLoggable(Logger.LOGLEVEL_VERBOSE)) {
+        LOGGER.fine("found " + name + " in codebase '" + bytecode.codebase + "'");
+      }
       // Use a protectionDomain to associate the codebase with the
       // class.
       ProtectionDomain pd = pdCache.get(bytecode.codebase);
@@ -518,14 +1784,21 @@ public class JarClassLoader extends ClassLoader implements IProperties {
 
           CodeSource source = new CodeSource(url, (Certificate[]) null);
           pd = new ProtectionDomain(source, null, this, null);
-          pdCache.put(bytecode.codebase, pd);
+          ProtectionDomain existing = pdCache.putIfAbsent(bytecode.codebase, pd);
+          if (existing != null) {
+            pd = existing;
+          } else {
+            pdCodebase.put(pd, bytecode.codebase);
+          }
         } catch (MalformedURLException mux) {
           throw new ClassNotFoundException(name, mux);
         }
       }
 
-      // Do it the simple way.
-      byte[] bytes = bytecode.bytes;
+      // Direct (mapped or off-heap) bytes are handed to the VM without copying them onto the heap, anything
+      // else is read (and if need be inflated) just once.
+      ByteBuffer buffer = bytecode.getDirectBuffer();
+      byte[] bytes = buffer == null ? bytecode.getBytes() : null;
 
       int i = name.lastIndexOf('.');
       if (i != -1) {
@@ -549,15 +1822,36 @@ public class JarClassLoader extends ClassLoader implements IProperties {
             }
           }
         } else {
-          if (man != null) {
-            definePackage(pkgname, man, pd.getCodeSource().getLocation());
-          } else {
-            definePackage(pkgname, null, null, null, null, null, null, null);
+          try {
+            if (man != null) {
+              definePackage(pkgname, man, pd.getCodeSource().getLocation());
+            } else {
+              definePackage(pkgname, null, null, null, null, null, null, null);
+            }
+          } catch (IllegalArgumentException iax) {
+            // defined concurrently while loading another class from the same package.
+            if (getDefinedPackage(pkgname) == null) {
+              throw iax;
+            }
           }
+          pendingPackages.remove(pkgname);
         }
       }
 
-      return defineClass(name, bytes, pd);
+      if (buffer != null) {
+        LOGGER.fine("defineClass(" + name + ") from direct buffer");
+        cls = defineClass(name, buffer, pd);
+      } else {
+        cls = defineClass(name, bytes, pd);
+      }
+      if (recorder != null) {
+        recorder.record(Recorder.CLASS, bytecode.original, bytecode.codebase);
+      }
+      if (release) {
+        // The VM holds the class now, getResourceAsStream will fetch the bytes again if needed.
+        bytecode.release();
+      }
+      return cls;
     }
     LOGGER.fine(name + " not found");
     throw new ClassNotFoundException(name);
@@ -656,25 +1950,51 @@ public class JarClassLoader extends ClassLoader implements IProperties {
    * @return the path refined to it's canonical version
    */
   protected String canon(String path) {
-    path = path.replaceAll("/\\./", "/");
-    String canon = path;
-    String next;
-    do {
-      next = canon;
-      canon = canon.replaceFirst("([^/]*/\\.\\./)", "");
-    } while (!next.equals(canon));
-    return canon;
+    // Most names have no . or .. segments, and are returned as they are.
+    if (path.indexOf("./") < 0) {
+      return path;
+    }
+    // Otherwise a single pass over the segments. As before, a segment is only removed if it is
+    // followed by a '/', and a leading "./" is kept.
+    StringBuilder canon = new StringBuilder(path.length());
+    int[] starts = new int[path.length() + 1];
+    int depth = 0;
+    int start = 0;
+    int slash;
+    while ((slash = path.indexOf('/', start)) >= 0) {
+      int length = slash - start;
+      if (length == 1 && start > 0 && path.charAt(start) == '.') {
+        // "/./" becomes "/"
+      } else if (length == 2 && depth > 0 && path.charAt(start) == '.' && path.charAt(start + 1) == '.') {
+        // "segment/../" is removed
+        canon.setLength(starts[--depth]);
+      } else {
+        starts[depth++] = canon.length();
+        canon.append(path, start, slash + 1);
+      }
+      start = slash + 1;
+    }
+    canon.append(path, start, path.length());
+    return canon.toString();
   }
 
+
   @Override
   public InputStream getResourceAsStream(String name) {
     Objects.requireNonNull(name);
+    if (missingResources != null && missingResources.contains(name)) {
+      return null;
+    }
     // no reason to look further if we already have the bytes
     InputStream byteStream = getByteStream(name);
     if (byteStream != null) {
       return byteStream;
     }
-    return super.getResourceAsStream(name);
+    InputStream result = super.getResourceAsStream(name);
+    if (result == null && missingResources != null) {
+      recordMiss(missingResources, name);
+    }
+    return result;
   }
 
   /**
@@ -703,33 +2023,34 @@ public class JarClassLoader extends ClassLoader implements IProperties {
    */
   public InputStream getByteStream(String resource) {
 
-    LOGGER.fine("getByteStream(" + resource + ")");
+    boolean fine = LOGGER.isLoggable(Logger.LOGLEVEL_VERBOSE);
+    if (fine) {
+      LOGGER.fine("getByteStream(" + resource + ")");
+    }
 
     InputStream result = null;
-    if (externalClassLoader != null) {
+    if (mayBeExternal(resource)) {
       result = externalClassLoader.getResourceAsStream(resource);
     }
 
-    if (result == null) {
-      // Delegate to parent classloader first.
-      ClassLoader parent = getParent();
-      if (parent != null) {
-        result = parent.getResourceAsStream(resource);
-      }
+    // Delegate to parent classloader first, unless the policy puts the uno-jar first.
+    ClassLoader parent = getParent();
+    boolean local = delegation != null && delegation.routeResource(resource) == DelegationPolicy.Route.LOCAL;
+    if (result == null && !local && parent != null) {
+      result = parent.getResourceAsStream(resource);
     }
 
     if (result == null) {
       // Make resource canonical (remove ., .., etc).
       resource = canon(resource);
-
-      // Look up resolving first.  This allows jar-local
-      // resolution to take place.
-      ByteCode bytecode = byteCode.get(resolve(resource));
-      if (bytecode == null) {
-        // Try again with an unresolved name.
-        bytecode = byteCode.get(resource);
+      ByteBuffer buffer = getResourceBuffer(resource);
+      if (buffer != null) {
+        result = new ByteBufferInputStream(buffer);
       }
-      if (bytecode != null) result = new ByteArrayInputStream(bytecode.bytes);
+    }
+
+    if (result == null && local && parent != null) {
+      result = parent.getResourceAsStream(resource);
     }
 
     // Contributed by SourceForge "ffrog_8" (with thanks, Pierce. T. Wetter III).
@@ -749,10 +2070,38 @@ public class JarClassLoader extends ClassLoader implements IProperties {
     if (result == null && delegateToParent) {
       result = checkParent(resource);
     }
-    LOGGER.fine("getByteStream(" + resource + ") -> " + result);
+    if (fine) {
+      LOGGER.fine("getByteStream(" + resource + ") -> " + result);
+    }
     return result;
   }
 
+  /**
+   * Access the bytes of a resource (or class, e.g. com/example/Foo.class) held in this uno-jar without
+   * copying them. The buffer is a view of the bytes the loader holds, in a mapped jar or off-heap store this
+   * is not on the java heap at all. Unlike {@link #getByteStream(String)} this does not consult the parent
+   * or external class loaders.
+   *
+   * @param resource the name of the resource, resolved jar-local first as for getByteStream
+   * @return a read-only buffer positioned at the first byte of the resource, or null if this uno-jar does
+   * not hold it
+   */
+  public ByteBuffer getResourceBuffer(String resource) {
+    resource = canon(resource);
+    awaitLoaded(resource);
+
+    // Look up resolving first.  This allows jar-local
+    // resolution to take place.
+    ByteCode bytecode = lookup(resource);
+    if (bytecode == null) {
+      return null;
+    }
+    if (recorder != null) {
+      recorder.record(Recorder.RESOURCE, bytecode.original, bytecode.codebase);
+    }
+    return bytecode.getBuffer();
+  }
+
   private InputStream checkParent(String resource) {
     InputStream result;// http://code.google.com/p/onejar-maven-plugin/issues/detail?id=16
     ClassLoader parentClassLoader = getParent();
@@ -774,41 +2123,71 @@ public class JarClassLoader extends ClassLoader implements IProperties {
    * @return the path of the resource if it is known
    */
   protected String resolve(String resource) {
+    ByteCode found = lookup(resource);
+    if (found == null) {
+      return null;
+    }
+    if (resource.startsWith("/")) resource = resource.substring(1);
+    return byteCode.get(resource) == found ? resource : found.codebase + "/" + resource;
+  }
+
+  /**
+   * Find a resource, looking first in the jar of the calling class, then in global scope. No keys are
+   * built, so a lookup allocates nothing unless logging is enabled.
+   *
+   * @param resource The resource to find
+   * @return the resource, or null if it is not known
+   */
+  protected ByteCode lookup(String resource) {
 
     if (resource.startsWith("/")) resource = resource.substring(1);
 
-    String rsrc = null;
-    String caller = getCaller();
-    ByteCode callerCode = byteCode.get(caller);
+    ByteCode found = null;
+    Class<?> caller = getCallerClass();
+    String codebase = caller != null ? classCodebase.get(caller) : null;
 
-    if (callerCode != null) {
+    if (codebase != null) {
       // Jar-local first, then global.
-      String tmp = callerCode.codebase + "/" + resource;
-      if (byteCode.get(tmp) != null) {
-        rsrc = tmp;
+      ByteCode[] jars = resourceIndex.get(resource);
+      if (jars != null) {
+        for (ByteCode jar : jars) {
+          if (jar.codebase.equals(codebase)) {
+            found = jar;
+            break;
+          }
+        }
       }
     }
-    if (rsrc == null) {
+    if (found == null) {
       // One last try.
-      if (byteCode.get(resource) != null) {
-        rsrc = resource;
-      }
+      found = byteCode.get(resource);
     }
-    LOGGER.fine("resource " + resource + " resolved to " + rsrc + (callerCode != null ? " in codebase " + callerCode.codebase : " (unknown codebase)"));
-    return rsrc;
+    if (LOGGER.isLoggable(Logger.LOGLEVEL_VERBOSE)) {
+      LOGGER.fine("resource " + resource + " resolved to " + (found != null ? found.name : null)
+          + (codebase != null ? " in codebase " + codebase : " (unknown codebase)"));
+    }
+    return found;
   }
 
   protected boolean alreadyCached(String name, String jar, ByteArrayOutputStream baos) {
+    return alreadyCached(name, jar, baos.toByteArray());
+  }
+
+  protected boolean alreadyCached(String name, String jar, byte[] candidate) {
     // TODO: check resource map to see how we will map requests for this
     //  resource from this jar file.  Only a conflict if we are using a
     //  global map and the resource is defined by more than
     //  one jar file (default is to map to local jar).
     ByteCode existing = byteCode.get(name);
+    if (existing != null && outranks(jar, existing.codebase)) {
+      LOGGER.fine(existing.name + " in " + existing.codebase + " is hidden by " + jar + " (declared first)");
+      return false;
+    }
     if (existing != null) {
-      byte[] bytes = baos.toByteArray();
+      ByteBuffer bytes = ByteBuffer.wrap(candidate);
       // If bytecodes are identical, no real problem.  Likewise if it's in
       // META-INF.
-      if (!Arrays.equals(existing.bytes, bytes) && !name.startsWith("META-INF")) {
+      if (!existing.getBuffer().equals(bytes) && !name.startsWith("META-INF")) {
         if (name.endsWith(".class")) {
           // This is probably trouble.
           LOGGER.warning(existing.name + " in " + jar + " is hidden by " + existing.codebase + " (with different bytecode)");
@@ -824,25 +2203,119 @@ public class JarClassLoader extends ClassLoader implements IProperties {
     return false;
   }
 
+  /**
+   * Lazy variant of {@link #alreadyCached(String, String, byte[])} which avoids inflating the
+   * candidate entry by comparing checksums instead of bytes.
+   */
+  protected boolean alreadyCached(String name, String jar, ZipDirectory.Entry candidate) {
+    ByteCode existing = byteCode.get(name);
+    if (existing != null && outranks(jar, existing.codebase)) {
+      LOGGER.fine(existing.name + " in " + existing.codebase + " is hidden by " + jar + " (declared first)");
+      return false;
+    }
+    if (existing != null) {
+      boolean same;
+      if (existing.entry != null) {
+        same = existing.entry.crc == candidate.crc && existing.entry.size == candidate.size;
+      } else {
+        CRC32 crc = new CRC32();
+        ByteBuffer bytes = existing.getBuffer();
+        same = bytes.remaining() == candidate.size;
+        crc.update(bytes);
+        same = same && crc.getValue() == candidate.crc;
+      }
+      if (!same && !name.startsWith("META-INF")) {
+        if (name.endsWith(".class")) {
+          LOGGER.warning(existing.name + " in " + jar + " is hidden by " + existing.codebase + " (with different bytecode)");
+        } else {
+          LOGGER.info(existing.name + " in " + jar + " is hidden by " + existing.codebase + " (with different bytes)");
+        }
+      } else {
+        LOGGER.fine(existing.name + " in " + jar + " is hidden by " + existing.codebase + " (with same bytecode)");
+      }
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Overridden to define packages that were found while indexing in lazy mode, but which have not yet
+   * had any classes loaded from them, and to wait for lib jars loading in the background which may hold
+   * the package.
+   */
+  @Override
+  @SuppressWarnings("deprecation")
+  protected Package getPackage(String name) {
+    Package pkg = super.getPackage(name);
+    if (pkg == null && pendingJars != null) {
+      awaitPackage(name);
+      pkg = super.getPackage(name);
+    }
+    if (pkg == null) {
+      pkg = definePendingPackage(name);
+    }
+    return pkg;
+  }
 
-  protected String getCaller() {
-    StackWalker walker = StackWalker.getInstance(RETAIN_CLASS_REFERENCE);
-    Optional<StackWalker.StackFrame> firstByteCode = walker.walk(s -> s.filter(f -> {
-      String caller = f.getClassName();
-      String cls = getByteCodeName(caller);
-      if (byteCode.get(cls) != null) {
-        return !caller.startsWith("com.needhamsoftware.unojar");
+  @Override
+  protected Package[] getPackages() {
+    List<PendingJar> pending = pendingJars;
+    if (pending != null) {
+      for (PendingJar lib : pending) {
+        lib.loaded.join();
       }
-      return false;
-    }).findFirst());
-    return firstByteCode.map(stackFrame -> getByteCodeName(stackFrame.getClassName())).orElse(null);
+    }
+    for (String name : new ArrayList<>(pendingPackages.keySet())) {
+      definePendingPackage(name);
+    }
+    return super.getPackages();
+  }
+
+  private Package definePendingPackage(String name) {
+    ByteCode pending = pendingPackages.remove(name);
+    if (pending == null) {
+      return null;
+    }
+    Package pkg = getDefinedPackage(name);
+    if (pkg != null) {
+      return pkg;
+    }
+    try {
+      if (pending.manifest != null) {
+        definePackage(name, pending.manifest, urlFactory.getCodeBase(pending.codebase));
+      } else {
+        definePackage(name, null, null, null, null, null, null, null);
+      }
+    } catch (MalformedURLException mux) {
+      LOGGER.warning("Unable to define package " + name + ": " + mux);
+      return null;
+    } catch (IllegalArgumentException iax) {
+      // defined concurrently by another thread.
+    }
+    return getDefinedPackage(name);
+  }
+
+  protected String getCaller() {
+    Class<?> caller = getCallerClass();
+    return caller != null ? getByteCodeName(caller.getName()) : null;
+  }
+
+  /**
+   * @return the innermost class on the stack that was defined by this loader (excluding uno-jar itself),
+   * or null if there is none. Only the defining loader of each frame is compared, nothing is looked up.
+   */
+  protected Class<?> getCallerClass() {
+    return WALKER.walk(s -> s.map(StackWalker.StackFrame::getDeclaringClass)
+        .filter(c -> c.getClassLoader() == this && !c.getName().startsWith("com.needhamsoftware.unojar"))
+        .findFirst()).orElse(null);
   }
 
   private String getByteCodeName(String className) {
-    return className.replace(".", "/") + ".class";
+    return className.replace('.', '/') + CLASS;
   }
 
 
+
   public void setVerbose(boolean verbose) {
     if (verbose) {
       Logger.setLevel(Logger.LOGLEVEL_VERBOSE);
@@ -896,9 +2369,8 @@ public class JarClassLoader extends ClassLoader implements IProperties {
 
     public URLStreamHandler jarHandler = new URLStreamHandler() {
       protected URLConnection openConnection(URL url) throws IOException {
-        URLConnection connection = new UnoJarURLConnection(url);
-        connection.connect();
-        return connection;
+        // Connected when first used, so that callers can still set useCaches.
+        return new UnoJarURLConnection(url, jcl);
       }
     };
 
@@ -931,31 +2403,52 @@ public class JarClassLoader extends ClassLoader implements IProperties {
    */
   @SuppressWarnings("unused") // instantiated by reflection!
   public static class UnoJarURLFactory implements IURLFactory {
+    // Opens the URLs created here against the loader directly, no protocol handler needs to be registered.
+    protected final Handler handler;
+
     public UnoJarURLFactory(JarClassLoader jcl) {
-      // Argument not used.
+      handler = new Handler(jcl);
     }
 
     public URL getURL(String codebase, String resource) throws MalformedURLException {
-      String base = resource.endsWith(".class") ? "" : codebase + "/";
-      return new URL(Handler.PROTOCOL + ":/" + base + resource);
+      // The jar and the entry name identify the entry, see Handler(JarClassLoader).
+      String base = "/".equals(codebase) ? "" : codebase;
+      return new URL(Handler.PROTOCOL, "", -1, "/" + base + "!/" + resource, handler);
     }
 
     public URL getCodeBase(String jar) throws MalformedURLException {
-      return new URL(Handler.PROTOCOL + ":" + jar);
+      return new URL(Handler.PROTOCOL, "", -1, jar, handler);
     }
   }
 
+
   public URL getResource(String name) {
+    if (missingResources != null && missingResources.contains(name)) {
+      return null;
+    }
     // Delegate to external first.
-    if (externalClassLoader != null) {
+    if (mayBeExternal(name)) {
       URL url = externalClassLoader.getResource(name);
       if (url != null)
         return url;
     }
-    return super.getResource(name);
+    URL url = null;
+    if (delegation != null && delegation.routeResource(name) == DelegationPolicy.Route.LOCAL) {
+      url = findResource(name);
+    }
+    if (url == null) {
+      url = super.getResource(name);
+    }
+    if (url == null && missingResources != null) {
+      recordMiss(missingResources, name);
+    }
+    return url;
   }
 
   protected IURLFactory urlFactory = new FileURLFactory(this);
+  // The URL of each entry returned by findResource() or findResources(), which are immutable so are only
+  // created once. Cleared when the factory changes.
+  protected Map<ByteCode, URL> urls = new ConcurrentHashMap<>();
 
   // Allow override for urlFactory
   @SuppressWarnings("rawtypes")
@@ -975,6 +2468,23 @@ public class JarClassLoader extends ClassLoader implements IProperties {
         throw new RuntimeException("Could not load URL factory:" + urlFactory, e);
       }
     }
+    urls.clear();
+  }
+
+  /**
+   * @param entry    a cached entry
+   * @param resource the name of the entry within its jar
+   * @return the URL for the entry, created by the URL factory the first time it is requested
+   * @throws MalformedURLException if the URL factory can't create it
+   */
+  protected URL getURL(ByteCode entry, String resource) throws MalformedURLException {
+    URL url = urls.get(entry);
+    if (url == null) {
+      if (resource.startsWith("/")) resource = resource.substring(1);
+      url = urlFactory.getURL(entry.codebase, resource);
+      urls.put(entry, url);
+    }
+    return url;
   }
 
   // Default implementation handles the legacy uno-jar cases.
@@ -1038,37 +2548,40 @@ public class JarClassLoader extends ClassLoader implements IProperties {
    * @see java.lang.ClassLoader#findResource(java.lang.String)
    */
   // TODO: Revisit the issue of protocol handlers for findResource() and findResources();
-  // TODO: I'm not sure this method should be calling getResources at all. java.lang.Classloader will have already
-  //  attempted "get" up the tree before calling "find" In a deep hierarchy this causes a redundant round
-  //  of getResource requests all the way up the chain.
+  // The parent is not asked here, java.lang.ClassLoader has already asked it before calling "find" (or
+  // will ask it afterwards, if the delegation policy puts the uno-jar first).
   protected URL findResource(String $resource) {
     try {
-      LOGGER.fine("findResource(\"" + $resource + "\")");
-      URL url = externalClassLoader != null ? externalClassLoader.getResource($resource) : null;
+      boolean info = LOGGER.isLoggable(Logger.LOGLEVEL_INFO);
+      if (LOGGER.isLoggable(Logger.LOGLEVEL_VERBOSE)) {
+        LOGGER.fine("findResource(\"" + $resource + "\")");
+      }
+      URL url = mayBeExternal($resource) ? externalClassLoader.getResource($resource) : null;
       if (url != null) {
-        LOGGER.info("findResource() found in external: \"" + $resource + "\"");
+        if (info) {
+          LOGGER.info("findResource() found in external: \"" + $resource + "\"");
+        }
         //LOGGER.VERBOSE("findResource(): " + $resource + "=" + url);
         return url;
       }
-      // Delegate to parent.
-      ClassLoader parent = getParent();
-      if (parent != null) {
-        url = parent.getResource($resource);
-        if (url != null) {
-          return url;
-        }
-      }
       // Do we have the named resource in our cache?  If so, construct a
       // 'onejar:' URL so that a later attempt to access the resource
       // will be redirected to our Handler class, and thence to this class.
-      String resource = resolve($resource);
-      if (resource != null) {
+      awaitLoaded($resource);
+      ByteCode entry = lookup($resource);
+      if (entry != null) {
         // We know how to handle it.
-        ByteCode entry = byteCode.get(resource);
-        LOGGER.info("findResource() found: \"" + $resource + "\" for caller " + getCaller() + " in codebase " + entry.codebase);
-        return urlFactory.getURL(entry.codebase, $resource);
+        if (recorder != null) {
+          recorder.record(Recorder.RESOURCE, entry.original, entry.codebase);
+        }
+        if (info) {
+          LOGGER.info("findResource() found: \"" + $resource + "\" in codebase " + entry.codebase);
+        }
+        return getURL(entry, $resource);
+      }
+      if (info) {
+        LOGGER.info("findResource(): unable to locate \"" + $resource + "\"");
       }
-      LOGGER.info("findResource(): unable to locate \"" + $resource + "\"");
       // If all else fails, return null.
       return null;
     } catch (MalformedURLException mux) {
@@ -1079,30 +2592,153 @@ public class JarClassLoader extends ClassLoader implements IProperties {
   }
 
   protected Enumeration<URL> findResources(String name) throws IOException {
-    LOGGER.info("findResources(" + name + ")");
-    LOGGER.info("findResources: looking in " + jarNames);
-    Iterator<String> iter = jarNames.iterator();
-    final List<URL> resources = new ArrayList<>();
-    while (iter.hasNext()) {
-      String resource = iter.next() + "/" + name;
-      ByteCode entry = byteCode.get(resource);
-      if (byteCode.containsKey(resource)) {
-        URL url = urlFactory.getURL(entry.codebase, name);
-        LOGGER.info("findResources(): Adding " + url + " to resources list.");
-        resources.add(url);
-      }
-    }
-    final Iterator<URL> ri = resources.iterator();
+    boolean verbose = LOGGER.isLoggable(Logger.LOGLEVEL_VERBOSE);
+    if (verbose) {
+      LOGGER.fine("findResources(" + name + ")");
+    }
+    awaitLoaded(name);
+    ByteCode[] jars = resourceIndex.get(name);
+    if (jars == null) {
+      return Collections.emptyEnumeration();
+    }
+    // URLs are only created as they are requested.
     return new Enumeration<>() {
+      private int next;
+
       public boolean hasMoreElements() {
-        return ri.hasNext();
+        return next < jars.length;
       }
 
       public URL nextElement() {
-        return ri.next();
+        if (next >= jars.length) {
+          throw new NoSuchElementException();
+        }
+        ByteCode entry = jars[next++];
+        if (recorder != null) {
+          recorder.record(Recorder.RESOURCE, entry.original, entry.codebase);
+        }
+        try {
+          URL url = getURL(entry, name);
+          if (verbose) {
+            LOGGER.fine("findResources(): returning " + url);
+          }
+          return url;
+        } catch (MalformedURLException mux) {
+          throw new UncheckedIOException(mux);
+        }
       }
     };
   }
+  /**
+   * Find an entry of a particular jar in the cache, as named by a jar: URL from the {@link FileURLFactory}.
+   *
+   * @param jar  the jar holding the entry, e.g. lib/util.jar, or / for the top of the uno-jar
+   * @param name the name of the entry within that jar
+   * @return the entry, or null if it is not cached
+   */
+  protected ByteCode getEntry(String jar, String name) {
+    awaitLoaded(name);
+    ByteCode[] jars = resourceIndex.get(name);
+    if (jars != null) {
+      for (ByteCode entry : jars) {
+        if (entry.codebase.equals(jar)) {
+          return entry;
+        }
+      }
+    }
+    // Classes are only cached by name.
+    ByteCode entry = byteCode.get(name);
+    return entry != null && entry.codebase.equals(jar) ? entry : null;
+  }
+
+  /**
+   * The providers of a service declared in META-INF/services by the jars in this uno-jar, in jar order and
+   * then in the order they are listed, without duplicates. This is the list ServiceLoader builds by
+   * reading each provider-configuration file, but it is read from the service index written when the
+   * uno-jar was built (or if there is none, parsed once) rather than on every call.
+   *
+   * @param service the binary name of the service, e.g. java.sql.Driver
+   * @return the provider class names, which may be empty
+   */
+  public List<String> getServiceProviders(String service) {
+    List<String> providers = serviceProviders.get(service);
+    if (providers != null) {
+      return providers;
+    }
+    ServiceIndex index = getServiceIndex();
+    if (index != NO_SERVICE_INDEX) {
+      // The index already covers every jar, so there is no need to wait for background loading.
+      Set<String> names = new LinkedHashSet<>();
+      for (ServiceIndex.Provider provider : inJarOrder(index.getProviders(service))) {
+        names.add(provider.className);
+      }
+      providers = Collections.unmodifiableList(new ArrayList<>(names));
+    } else {
+      String name = ServiceIndex.SERVICES + service;
+      awaitLoaded(name);
+      Set<String> names = new LinkedHashSet<>();
+      ByteCode[] jars = resourceIndex.get(name);
+      if (jars != null) {
+        for (ByteCode jar : jars) {
+          // Like the index, only nested jars are included.
+          if ("/".equals(jar.codebase)) {
+            continue;
+          }
+          try (InputStream is = new ByteBufferInputStream(jar.getBuffer())) {
+            names.addAll(ServiceIndex.parse(is));
+          } catch (IOException iox) {
+            LOGGER.warning("Unable to read " + name + " from " + jar.codebase + ": " + iox);
+          }
+        }
+      }
+      providers = Collections.unmodifiableList(new ArrayList<>(names));
+    }
+    List<String> existing = serviceProviders.putIfAbsent(service, providers);
+    return existing != null ? existing : providers;
+  }
+  /**
+   * @return the providers in the order their jars are searched, which is the order they are stored in the
+   * uno-jar unless jars were reordered when it was built. Jars listed in the lib order then keep that
+   * order, as in {@link #addToIndex(ByteCode[], ByteCode)}.
+   */
+  protected List<ServiceIndex.Provider> inJarOrder(List<ServiceIndex.Provider> providers) {
+    List<ServiceIndex.Provider> ordered = new ArrayList<>(providers.size());
+    for (ServiceIndex.Provider provider : providers) {
+      int at = ordered.size();
+      while (at > 0 && outranks(provider.jar, ordered.get(at - 1).jar)) {
+        at--;
+      }
+      ordered.add(at, provider);
+    }
+    return ordered;
+  }
+
+
+  /**
+   * @return the service index written into the uno-jar when it was built, or NO_SERVICE_INDEX if there is none
+   */
+  private ServiceIndex getServiceIndex() {
+    ServiceIndex index = serviceIndex;
+    if (index == null) {
+      index = NO_SERVICE_INDEX;
+      ByteCode[] jars = resourceIndex.get(ServiceIndex.NAME);
+      if (jars != null) {
+        for (ByteCode jar : jars) {
+          if ("/".equals(jar.codebase)) {
+            try (InputStream is = new ByteBufferInputStream(jar.getBuffer())) {
+              index = ServiceIndex.read(is);
+            } catch (IOException iox) {
+              LOGGER.warning("Unable to read " + ServiceIndex.NAME + " (" + iox.getMessage() + "), services will be parsed");
+            }
+          }
+        }
+      }
+      serviceIndex = index;
+    }
+    return index;
+  }
+
+
 
   /**
    * Utility to assist with copying InputStream to OutputStream.  All
@@ -1161,53 +2797,182 @@ public class JarClassLoader extends ClassLoader implements IProperties {
    * @since 1.2
    */
   protected String findTheLibrary(String BINLIB_PREFIX, String name) {
-    String result = null; // By default, search the java.library.path for it
-
-    String resourcePath = BINLIB_PREFIX + System.mapLibraryName(name);
-
-    // If it isn't in the map, try to expand to temp and return the full path
-    // otherwise, remain null so the java.library.path is searched.
+    // Null by default, so the java.library.path is searched for it.
+    return getLibraryPath(BINLIB_PREFIX + System.mapLibraryName(name));
+  }
 
+  /**
+   * Expand a native library the first time it is asked for, however many threads ask for it at once.
+   *
+   * @param resourcePath the path of the library within the uno-jar, e.g. binlib/linux64/libfoo.so
+   * @return the full pathname of the expanded library, or null if the uno-jar does not hold it
+   */
+  protected String getLibraryPath(String resourcePath) {
     // If it has been expanded already and in the map, return the expanded value
-    if (binLibPath.get(resourcePath) != null) {
-      result = binLibPath.get(resourcePath);
-    } else {
+    String expanded = binLibPath.get(resourcePath);
+    if (expanded != null) {
+      return expanded;
+    }
+    synchronized (binLibLocks.computeIfAbsent(resourcePath, p -> new Object())) {
+      expanded = binLibPath.get(resourcePath);
+      if (expanded == null) {
+        expanded = expandLibrary(resourcePath);
+        if (expanded != null) {
+          binLibPath.put(resourcePath, expanded);
+        }
+      }
+    }
+    return expanded;
+  }
+
+  /**
+   * Expand a native library into the cache under uno-jar.expand.dir, where it is kept for later runs, or
+   * if there is no expand dir to a temporary file which is deleted on exit.
+   *
+   * @param resourcePath the path of the library within the uno-jar
+   * @return the full pathname of the expanded library, or null if the uno-jar does not hold it
+   */
+  protected String expandLibrary(String resourcePath) {
+    String fileName = resourcePath.substring(resourcePath.lastIndexOf('/') + 1);
+    try {
+      File dir = getExpandDir();
+      File file = dir == null ? null : toLocalFile(oneJarPath);
+      if (file != null) {
+        try (JarFile jar = new JarFile(file, false)) {
+          JarEntry entry = jar.getJarEntry(resourcePath);
+          if (entry != null && entry.getSize() >= 0 && entry.getCrc() >= 0) {
+            return extractCached(jar, entry, new File(dir, "binlib")).getPath();
+          }
+        }
+      }
 
       // See if it's a resource in the JAR that can be extracted
-      File tempNativeLib;
-      FileOutputStream os;
-      try {
-        int lastDot = resourcePath.lastIndexOf('.');
+      InputStream is = this.getClass().getResourceAsStream("/" + resourcePath);
+      if (is != null) {
+        int lastDot = fileName.lastIndexOf('.');
         String suffix = null;
         if (lastDot >= 0) {
-          suffix = resourcePath.substring(lastDot);
+          suffix = fileName.substring(lastDot);
         }
-        InputStream is = this.getClass().getResourceAsStream("/" + resourcePath);
-
-        if (is != null) {
-          tempNativeLib = File.createTempFile(name + "-", suffix);
-          tempNativeLib.deleteOnExit();
-          os = new FileOutputStream(tempNativeLib);
-          copy(is, os);
-          os.close();
-          LOGGER.fine("Stored native library " + name + " at " + tempNativeLib);
-          result = tempNativeLib.getPath();
-          binLibPath.put(resourcePath, result);
-        } else {
-          // Library is not in the jar
-          // Return null by default to search the java.library.path
-          LOGGER.fine("No native library at " + resourcePath +
-              "java.library.path will be searched instead.");
+        File tempNativeLib = File.createTempFile((lastDot > 0 ? fileName.substring(0, lastDot) : fileName) + "-", suffix);
+        tempNativeLib.deleteOnExit();
+        try (InputStream in = is) {
+          Files.copy(in, tempNativeLib.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        LOGGER.fine("Stored native library " + fileName + " at " + tempNativeLib);
+        return tempNativeLib.getPath();
+      }
+      // Library is not in the jar
+      // Return null by default to search the java.library.path
+      LOGGER.fine("No native library at " + resourcePath +
+          "java.library.path will be searched instead.");
+    } catch (Throwable e) {
+      // Couldn't load the library
+      // Return null by default to search the java.library.path
+      LOGGER.warning("Unable to load native library: " + e);
+    }
+    return null;
+  }
+
+  /**
+   * Extract a native library into the cache, unless an earlier run already has. Libraries are kept in a
+   * directory named after the CRC and size recorded for them in the uno-jar, so a changed library is
+   * extracted afresh, and are only ever moved into place once complete. A library already in the cache is
+   * only used if its CRC matches, since the directory may be shared. A lock file serializes VMs, and a
+   * lock per library the threads of this VM, extracting the same library at the same time.
+   *
+   * @param jar   the uno-jar
+   * @param entry the library
+   * @param cache the cache directory
+   * @return the extracted library
+   * @throws IOException if the library can't be extracted
+   */
+  protected File extractCached(JarFile jar, JarEntry entry, File cache) throws IOException {
+    String name = entry.getName();
+    String fileName = name.substring(name.lastIndexOf('/') + 1);
+    String key = Long.toHexString(entry.getCrc()) + "-" + Long.toHexString(entry.getSize());
+    File target = new File(new File(cache, key), fileName);
+    if (isExtracted(target, entry)) {
+      LOGGER.fine("Using cached native library " + target);
+      return target;
+    }
+    Path dir = Files.createDirectories(target.getParentFile().toPath());
+    File lockFile = new File(cache, key + ".lock");
+    synchronized (CACHE_LOCKS.computeIfAbsent(lockFile.getAbsolutePath(), f -> new Object())) {
+      try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+        FileLock lock = channel.lock();
+        try {
+          if (isExtracted(target, entry)) {
+            // Extracted by another thread or VM while we waited.
+            return target;
+          }
+          Path tmp = Files.createTempFile(dir, fileName, ".tmp");
+          try {
+            try (InputStream is = jar.getInputStream(entry)) {
+              Files.copy(is, tmp, StandardCopyOption.REPLACE_EXISTING);
+            }
+            try {
+              Files.move(tmp, target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException amx) {
+              Files.move(tmp, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+          } finally {
+            Files.deleteIfExists(tmp);
+          }
+        } finally {
+          lock.release();
         }
-      } catch (Throwable e) {
-        // Couldn't load the library
-        // Return null by default to search the java.library.path
-        LOGGER.warning("Unable to load native library: " + e);
       }
+    }
+    LOGGER.fine("Cached native library " + name + " at " + target);
+    return target;
+  }
 
+  /**
+   * @return true if the file holds the entry, judged by its size and CRC
+   */
+  protected boolean isExtracted(File file, JarEntry entry) throws IOException {
+    if (!file.isFile() || file.length() != entry.getSize()) {
+      return false;
+    }
+    CRC32 crc = new CRC32();
+    try (InputStream is = new FileInputStream(file)) {
+      byte[] buf = new byte[BUFFER_SIZE];
+      int len;
+      while ((len = is.read(buf)) >= 0) {
+        crc.update(buf, 0, len);
+      }
+    }
+    if (crc.getValue() != entry.getCrc()) {
+      LOGGER.info("Cached native library " + file + " does not match " + entry.getName() + ", replacing it");
+      return false;
     }
+    return true;
+  }
 
-    return result;
+  /**
+   * Start expanding the native libraries for this platform listed by the Uno-Jar-Binlib-Extract attribute
+   * of the uno-jar manifest, in parallel, so they are ready by the time System.loadLibrary asks for them.
+   * This is only done when there is an expand dir to keep them in, otherwise libraries are expanded when
+   * they are loaded.
+   *
+   * @param manifest the manifest of the uno-jar, or null
+   */
+  protected void expandLibraries(Manifest manifest) {
+    String list = manifest == null ? null : manifest.getMainAttributes().getValue(Boot.ONE_JAR_BINLIB_EXTRACT);
+    if (list == null || list.trim().isEmpty() || getExpandDir() == null) {
+      return;
+    }
+    String binlib = binlibResolver.find(BINLIB_PREFIX);
+    if (binlibResolver != defaultBinlibResolver && binlib == null)
+      binlib = defaultBinlibResolver.find(BINLIB_PREFIX);
+    for (String resourcePath : splitNames(list)) {
+      String dir = resourcePath.substring(0, resourcePath.lastIndexOf('/') + 1);
+      // Libraries for other platforms are never loaded.
+      if (dir.equals(binlib) || dir.equals(BINLIB_PREFIX)) {
+        CompletableFuture.runAsync(() -> getLibraryPath(resourcePath));
+      }
+    }
   }
 
   public void setProperties(IProperties jarLoader) {
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2019=2020, Needham Software LLC
+ * All rights reserved.
+ *
+ * See the full license at https://github.com/nsoft/uno-jar/blob/master/LICENSE.txt
+ * See addition code licenses at: https://github.com/nsoft/uno-jar/blob/master/NOTICE.txt
+ */
+
+package com.needhamsoftware.unojar;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An index of the entries in the nested jars of an uno-jar. The index is written into the uno-jar as
+ * {@link #NAME} when it is built, so that the JarClassLoader can locate every entry (and so every
+ * package) of every nested jar without reading their central directories.
+ * <p>
+ * Each nested jar is recorded with its size and CRC so that an index which no longer matches the
+ * jar it describes is detected and ignored. The format is a simple big-endian binary format:
+ * <pre>
+ *   int magic, int version, int jar count
+ *   per jar:   UTF name, long size, long crc, int entry count
+ *   per entry: UTF name, short method, long crc, long compressed size, long size, long local header offset
+ * </pre>
+ */
+public class JarIndex {
+
+  public static final String NAME = "META-INF/uno-jar.idx";
+
+  private static final int MAGIC = 0x554a4958;
+  private static final int VERSION = 1;
+  private static final int MAX_PRESIZE = 4096;
+
+  private final Map<String, Jar> jars = new LinkedHashMap<>();
+
+  /**
+   * The entries of a single nested jar.
+   */
+  public static class Jar {
+    public final String name;
+    public final long size;
+    public final long crc;
+    public final List<ZipDirectory.Entry> entries;
+
+    public Jar(String name, long size, long crc, List<ZipDirectory.Entry> entries) {
+      this.name = name;
+      this.size = size;
+      this.crc = crc;
+      this.entries = Collections.unmodifiableList(new ArrayList<>(entries));
+    }
+
+    /**
+     * @param size the uncompressed size of the nested jar
+     * @param crc  the CRC-32 of the nested jar
+     * @return true if the jar described matches this index
+     */
+    public boolean matches(long size, long crc) {
+      return this.size == size && this.crc == crc;
+    }
+  }
+
+  /**
+   * Add a nested jar, replacing any jar previously added with the same name.
+   *
+   * @param name    the name of the nested jar within the uno-jar, e.g. lib/util.jar
+   * @param size    the size of the nested jar
+   * @param crc     the CRC-32 of the nested jar
+   * @param entries the entries of the nested jar
+   */
+  public void add(String name, long size, long crc, List<ZipDirectory.Entry> entries) {
+    jars.put(name, new Jar(name, size, crc, entries));
+  }
+
+  /**
+   * @param name the name of a nested jar
+   * @return the indexed jar or null if it is not in the index
+   */
+  public Jar getJar(String name) {
+    return jars.get(name);
+  }
+
+  /**
+   * @return all indexed jars, in the order they were added
+   */
+  public Collection<Jar> getJars() {
+    return Collections.unmodifiableCollection(jars.values());
+  }
+
+  public boolean isEmpty() {
+    return jars.isEmpty();
+  }
+
+  public void write(OutputStream os) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(jars.size());
+    for (Jar jar : jars.values()) {
+      out.writeUTF(jar.name);
+      out.writeLong(jar.size);
+      out.writeLong(jar.crc);
+      out.writeInt(jar.entries.size());
+      for (ZipDirectory.Entry entry : jar.entries) {
+        out.writeUTF(entry.name);
+        out.writeShort(entry.method);
+        out.writeLong(entry.crc);
+        out.writeLong(entry.compressedSize);
+        out.writeLong(entry.size);
+        out.writeLong(entry.headerOffset);
+      }
+    }
+    out.flush();
+  }
+
+  /**
+   * Read an index written by {@link #write(OutputStream)}.
+   *
+   * @param is the stream to read, which is not closed
+   * @return the index
+   * @throws IOException if the stream does not hold an index of a supported version
+   */
+  public static JarIndex read(InputStream is) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+    if (in.readInt() != MAGIC) {
+      throw new IOException("not an uno-jar index");
+    }
+    int version = in.readInt();
+    if (version != VERSION) {
+      throw new IOException("unsupported uno-jar index version " + version);
+    }
+    JarIndex index = new JarIndex();
+    int jarCount = readCount(in);
+    for (int j = 0; j < jarCount; j++) {
+      String name = in.readUTF();
+      long size = in.readLong();
+      long crc = in.readLong();
+      int count = readCount(in);
+      // A damaged count runs into the end of the stream rather than presizing a huge list.
+      List<ZipDirectory.Entry> entries = new ArrayList<>(Math.min(count, MAX_PRESIZE));
+      for (int i = 0; i < count; i++) {
+        entries.add(new ZipDirectory.Entry(in.readUTF(), in.readShort() & 0xffff, in.readLong(), in.readLong(),
+            in.readLong(), in.readLong()));
+      }
+      index.add(name, size, crc, entries);
+    }
+    return index;
+  }
+
+  private static int readCount(DataInputStream in) throws IOException {
+    int count = in.readInt();
+    if (count < 0) {
+      throw new IOException("corrupt uno-jar index, negative count " + count);
+    }
+    return count;
+  }
+}
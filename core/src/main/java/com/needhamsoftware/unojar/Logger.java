@@ -101,6 +101,16 @@ public final class Logger {
     }
   }
 
+  /**
+   * Check the level before building an expensive message.
+   *
+   * @param level logging level
+   * @return true if messages at this level are logged
+   */
+  public boolean isLoggable(int level) {
+    return loglevel >= level;
+  }
+
   /**
    * Sets the logging level.
    *
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2019=2020, Needham Software LLC
+ * All rights reserved.
+ *
+ * See the full license at https://github.com/nsoft/uno-jar/blob/master/LICENSE.txt
+ * See addition code licenses at: https://github.com/nsoft/uno-jar/blob/master/NOTICE.txt
+ */
+
+package com.needhamsoftware.unojar;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An append-only arena of direct memory. Bytes are copied into large direct chunks and handed back as
+ * read-only slices, so that cached class and resource bytes do not live on the java heap. Large entries
+ * are given a buffer of their own rather than wasting the remainder of a chunk.
+ * <p>
+ * Nothing is ever freed individually, the memory is released when the store (and every slice taken
+ * from it) becomes unreachable. Direct memory is limited by -XX:MaxDirectMemorySize.
+ * <p>
+ * Allocation is guarded by a lock rather than a monitor so that virtual threads reading lazily
+ * loaded classes do not pin their carrier threads.
+ */
+public class OffHeapStore {
+
+  public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+  private final int chunkSize;
+  private final ReentrantLock lock = new ReentrantLock();
+  private ByteBuffer chunk;
+  private long allocated;
+  private long used;
+
+  public OffHeapStore() {
+    this(DEFAULT_CHUNK_SIZE);
+  }
+
+  public OffHeapStore(int chunkSize) {
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * Copy bytes into direct memory.
+   *
+   * @param bytes the bytes to store
+   * @return a read-only direct buffer holding a copy of the bytes
+   */
+  public ByteBuffer put(byte[] bytes) {
+    ByteBuffer slice = allocate(bytes.length);
+    slice.put(bytes).flip();
+    return slice.asReadOnlyBuffer();
+  }
+
+  private ByteBuffer allocate(int length) {
+    lock.lock();
+    try {
+      used += length;
+      if (length > chunkSize / 4) {
+        allocated += length;
+        return ByteBuffer.allocateDirect(length);
+      }
+      if (chunk == null || chunk.remaining() < length) {
+        chunk = ByteBuffer.allocateDirect(chunkSize);
+        allocated += chunkSize;
+      }
+      ByteBuffer slice = chunk.slice();
+      slice.limit(length);
+      chunk.position(chunk.position() + length);
+      return slice;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of bytes of direct memory allocated by this store
+   */
+  public long getAllocated() {
+    lock.lock();
+    try {
+      return allocated;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of bytes stored
+   */
+  public long getUsed() {
+    lock.lock();
+    try {
+      return used;
+    } finally {
+      lock.unlock();
+    }
+  }
+}
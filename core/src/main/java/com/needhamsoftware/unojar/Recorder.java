@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2019=2020, Needham Software LLC
+ * All rights reserved.
+ *
+ * See the full license at https://github.com/nsoft/uno-jar/blob/master/LICENSE.txt
+ * See addition code licenses at: https://github.com/nsoft/uno-jar/blob/master/NOTICE.txt
+ */
+
+package com.needhamsoftware.unojar;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Records the classes and resources served by the JarClassLoader, in the order they are first used.
+ * The profile is a tab separated text file with one line per event:
+ * <pre>
+ *   milliseconds since recording started, thread, kind (class or resource), entry name, jar
+ * </pre>
+ * Lines starting with # are comments. Entry names are the names of entries within the jar, e.g.
+ * com/example/Main.class, and the jar is the name of the nested jar within the uno-jar, e.g.
+ * lib/util.jar, or / for entries at the top of the uno-jar. Each entry is recorded once, either once per
+ * jar, or if jar names are not being kept only for the first jar to serve it.
+ */
+public class Recorder implements Closeable {
+
+  public static final String CLASS = "class";
+  public static final String RESOURCE = "resource";
+  public static final String HEADER = "# uno-jar profile: millis\tthread\tkind\tname\tjar";
+
+  private final Writer out;
+  private final boolean jarNames;
+  private final long start = System.currentTimeMillis();
+  private final Set<String> seen = ConcurrentHashMap.newKeySet();
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /**
+   * A single recorded event.
+   */
+  public static class Event {
+    public final long millis;
+    public final String thread;
+    public final String kind;
+    public final String name;
+    public final String jar;
+
+    public Event(long millis, String thread, String kind, String name, String jar) {
+      this.millis = millis;
+      this.thread = thread;
+      this.kind = kind;
+      this.name = name;
+      this.jar = jar;
+    }
+  }
+
+  /**
+   * @param file     the profile to write, it is replaced if it exists
+   * @param jarNames true to record an entry once for each jar that serves it, false to record it once
+   * @throws IOException if the profile can't be created
+   */
+  public Recorder(File file, boolean jarNames) throws IOException {
+    this(new FileOutputStream(file), jarNames);
+  }
+
+  public Recorder(OutputStream os, boolean jarNames) throws IOException {
+    this.out = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
+    this.jarNames = jarNames;
+    out.write(HEADER);
+    out.write('\n');
+  }
+
+  /**
+   * Record the first use of an entry, later uses are ignored.
+   *
+   * @param kind {@link #CLASS} or {@link #RESOURCE}
+   * @param name the name of the entry
+   * @param jar  the jar the entry was served from
+   */
+  public void record(String kind, String name, String jar) {
+    if (!seen.add(jarNames ? jar + "!/" + name : name)) {
+      return;
+    }
+    String line = (System.currentTimeMillis() - start) + "\t" + clean(Thread.currentThread().getName()) + "\t"
+        + kind + "\t" + clean(name) + "\t" + clean(jar) + "\n";
+    lock.lock();
+    try {
+      out.write(line);
+    } catch (IOException iox) {
+      // Recording is diagnostic, don't fail class loading.
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private static String clean(String s) {
+    return s == null ? "" : s.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+  }
+
+  public void flush() throws IOException {
+    lock.lock();
+    try {
+      out.flush();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public void close() throws IOException {
+    lock.lock();
+    try {
+      out.close();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Read a profile written by a Recorder.
+   *
+   * @param is the profile, which is not closed
+   * @return the events in the order they were recorded
+   * @throws IOException if the profile can't be read
+   */
+  public static List<Event> read(InputStream is) throws IOException {
+    BufferedReader in = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+    List<Event> events = new ArrayList<>();
+    String line;
+    while ((line = in.readLine()) != null) {
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      String[] fields = line.split("\t", -1);
+      if (fields.length < 5) {
+        throw new IOException("invalid profile line: " + line);
+      }
+      try {
+        events.add(new Event(Long.parseLong(fields[0]), fields[1], fields[2], fields[3], fields[4]));
+      } catch (NumberFormatException nfx) {
+        throw new IOException("invalid profile line: " + line, nfx);
+      }
+    }
+    return events;
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2019=2020, Needham Software LLC
+ * All rights reserved.
+ *
+ * See the full license at https://github.com/nsoft/uno-jar/blob/master/LICENSE.txt
+ * See addition code licenses at: https://github.com/nsoft/uno-jar/blob/master/NOTICE.txt
+ */
+
+package com.needhamsoftware.unojar;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The service providers declared in META-INF/services by the nested jars of an uno-jar, merged when the
+ * uno-jar is built and written into it as {@link #NAME}. The JarClassLoader serves provider lists from it
+ * without opening or parsing each provider-configuration file.
+ * <p>
+ * Providers are kept in the order their jars were added, which is the order the jars are stored in the
+ * uno-jar, and within a jar in the order they are listed. The format is a simple
+ * big-endian binary format:
+ * <pre>
+ *   int magic, int version, int service count
+ *   per service:  UTF service name, int provider count
+ *   per provider: UTF jar name, UTF provider class name
+ * </pre>
+ */
+public class ServiceIndex {
+
+  public static final String NAME = "META-INF/uno-jar.services";
+  public static final String SERVICES = "META-INF/services/";
+
+  private static final int MAGIC = 0x554a5356;
+  private static final int VERSION = 1;
+
+  private final Map<String, List<Provider>> services = new LinkedHashMap<>();
+
+  /**
+   * A provider declared by a single nested jar.
+   */
+  public static class Provider {
+    public final String jar;
+    public final String className;
+
+    public Provider(String jar, String className) {
+      this.jar = jar;
+      this.className = className;
+    }
+  }
+
+  /**
+   * Add the providers declared by a jar, after any already added for the service.
+   *
+   * @param service   the binary name of the service
+   * @param jar       the name of the nested jar within the uno-jar, e.g. lib/util.jar
+   * @param providers the provider class names, as returned by {@link #parse(InputStream)}
+   */
+  public void add(String service, String jar, List<String> providers) {
+    List<Provider> list = services.computeIfAbsent(service, s -> new ArrayList<>());
+    for (String provider : providers) {
+      list.add(new Provider(jar, provider));
+    }
+  }
+
+  /**
+   * @param service the binary name of the service
+   * @return the providers of the service, in the order their jars were added, or an empty list if it has none
+   */
+  public List<Provider> getProviders(String service) {
+    List<Provider> list = services.get(service);
+    return list == null ? Collections.emptyList() : Collections.unmodifiableList(list);
+  }
+
+  /**
+   * @param service the binary name of the service
+   * @return the distinct class names of the providers of the service, in the order their jars were added. This
+   * is the order ServiceLoader finds them in unless the jars were stored out of their declared order.
+   */
+  public List<String> getProviderNames(String service) {
+    Set<String> names = new LinkedHashSet<>();
+    for (Provider provider : getProviders(service)) {
+      names.add(provider.className);
+    }
+    return new ArrayList<>(names);
+  }
+
+  public boolean isEmpty() {
+    return services.isEmpty();
+  }
+
+  public void write(OutputStream os) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(services.size());
+    for (Map.Entry<String, List<Provider>> service : services.entrySet()) {
+      out.writeUTF(service.getKey());
+      out.writeInt(service.getValue().size());
+      for (Provider provider : service.getValue()) {
+        out.writeUTF(provider.jar);
+        out.writeUTF(provider.className);
+      }
+    }
+    out.flush();
+  }
+
+  /**
+   * Read an index written by {@link #write(OutputStream)}.
+   *
+   * @param is the stream to read, which is not closed
+   * @return the index
+   * @throws IOException if the stream does not hold an index of a supported version
+   */
+  public static ServiceIndex read(InputStream is) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+    if (in.readInt() != MAGIC) {
+      throw new IOException("not an uno-jar service index");
+    }
+    int version = in.readInt();
+    if (version != VERSION) {
+      throw new IOException("unsupported uno-jar service index version " + version);
+    }
+    ServiceIndex index = new ServiceIndex();
+    int serviceCount = in.readInt();
+    for (int s = 0; s < serviceCount; s++) {
+      String service = in.readUTF();
+      int count = in.readInt();
+      List<Provider> list = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        list.add(new Provider(in.readUTF(), in.readUTF()));
+      }
+      index.services.put(service, list);
+    }
+    return index;
+  }
+
+  /**
+   * Parse a provider-configuration file as ServiceLoader does: UTF-8, one class name per line, with
+   * comments starting at '#' and surrounding whitespace ignored.
+   *
+   * @param is the file, which is not closed
+   * @return the class names in the order they are listed, without duplicates
+   * @throws IOException if the file can't be read
+   */
+  public static List<String> parse(InputStream is) throws IOException {
+    BufferedReader in = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+    Set<String> names = new LinkedHashSet<>();
+    String line;
+    while ((line = in.readLine()) != null) {
+      int comment = line.indexOf('#');
+      if (comment >= 0) {
+        line = line.substring(0, comment);
+      }
+      line = line.trim();
+      if (!line.isEmpty()) {
+        names.add(line);
+      }
+    }
+    return new ArrayList<>(names);
+  }
+}
@@ -18,32 +18,115 @@
 package com.needhamsoftware.unojar;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.JarInputStream;
+import java.util.jar.Manifest;
 import java.util.zip.ZipEntry;
 
+/**
+ * A jar nested within the uno-jar, presented as a JarFile. The central directory of the nested jar is
+ * read once and shared by every UnoJarFile for that jar, so entries are found by name and read in place
+ * (stored entries are not copied at all) without scanning the nested jar, and concurrent readers don't
+ * block each other. If the nested jar can't be indexed (e.g. zip64) it is scanned as a stream instead.
+ */
 public class UnoJarFile extends JarFile {
 
+  private static final Logger LOGGER = Logger.getLogger("UnoJarFile");
+
+  // Directories of the nested jars opened so far, by uno-jar path and nested jar name. The uno-jar
+  // does not change while it is running, so they never need to be refreshed.
+  private static final Map<String, ZipDirectory> DIRECTORIES = new ConcurrentHashMap<>();
+
   protected final String jarFilename;
   protected final String filename;
   protected final JarEntry wrappedJarFile;
+  protected final ZipDirectory directory;
 
   public UnoJarFile(String myJarPath, String jarFilename, String filename) throws IOException {
     super(myJarPath);
     this.jarFilename = jarFilename;
     this.filename = filename;
     wrappedJarFile = super.getJarEntry(this.jarFilename);
+    directory = wrappedJarFile != null ? getDirectory(myJarPath) : null;
+  }
+
+  /**
+   * @return the shared directory of the nested jar, or null if it can't be indexed
+   */
+  private ZipDirectory getDirectory(String myJarPath) {
+    String key = myJarPath + "!/" + jarFilename;
+    ZipDirectory dir = DIRECTORIES.get(key);
+    if (dir == null) {
+      try {
+        dir = new ZipDirectory(getNestedJar(myJarPath));
+      } catch (IOException iox) {
+        LOGGER.info("Unable to index " + key + " (" + iox.getMessage() + "), it will be scanned");
+        return null;
+      }
+      ZipDirectory existing = DIRECTORIES.putIfAbsent(key, dir);
+      if (existing != null) {
+        dir = existing;
+      }
+    }
+    return dir;
+  }
+
+  /**
+   * @return the bytes of the nested jar, mapped in place if it is stored in the uno-jar, otherwise read
+   * onto the heap
+   */
+  private ByteBuffer getNestedJar(String myJarPath) throws IOException {
+    try (FileChannel channel = FileChannel.open(Paths.get(myJarPath), StandardOpenOption.READ)) {
+      if (channel.size() <= Integer.MAX_VALUE) {
+        ZipDirectory outer = new ZipDirectory(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        ZipDirectory.Entry entry = outer.getEntry(jarFilename);
+        if (entry != null) {
+          return outer.getBuffer(entry);
+        }
+      }
+    } catch (IOException | InvalidPathException x) {
+      LOGGER.fine("Unable to map " + myJarPath + " (" + x.getMessage() + "), reading " + jarFilename);
+    }
+    try (InputStream is = super.getInputStream(wrappedJarFile)) {
+      return ByteBuffer.wrap(is.readAllBytes());
+    }
+  }
+
+  private static JarEntry toJarEntry(ZipDirectory.Entry entry) {
+    JarEntry result = new JarEntry(entry.name);
+    if (entry.method == ZipEntry.STORED || entry.method == ZipEntry.DEFLATED) {
+      result.setMethod(entry.method);
+    }
+    result.setCrc(entry.crc);
+    result.setSize(entry.size);
+    result.setCompressedSize(entry.compressedSize);
+    return result;
   }
 
   public JarEntry getJarEntry(String name) {
     String filename = name.substring(name.indexOf("!/") + 2);
+    ZipDirectory.Entry indexed = directory != null ? directory.getEntry(filename) : null;
+    if (indexed != null) {
+      return toJarEntry(indexed);
+    }
     if (filename.equals(MANIFEST_NAME)) {
       // Synthesize a JarEntry.
       return new JarEntry(filename) {
       };
     }
+    if (directory != null) {
+      return null;
+    }
     try {
       try (JarInputStream is = new JarInputStream(super.getInputStream(wrappedJarFile))) {
         JarEntry entry;
@@ -61,6 +144,18 @@ public class UnoJarFile extends JarFile {
   }
 
   public Enumeration<JarEntry> entries() {
+    if (directory != null) {
+      Iterator<ZipDirectory.Entry> iterator = directory.getEntries().iterator();
+      return new Enumeration<>() {
+        public boolean hasMoreElements() {
+          return iterator.hasNext();
+        }
+
+        public JarEntry nextElement() {
+          return toJarEntry(iterator.next());
+        }
+      };
+    }
     try {
       final JarInputStream is = new JarInputStream(super.getInputStream(wrappedJarFile));
       return new Enumeration<>() {
@@ -101,12 +196,38 @@ public class UnoJarFile extends JarFile {
     }
   }
 
-  public synchronized InputStream getInputStream(ZipEntry ze) {
+  public int size() {
+    return directory != null ? directory.getEntries().size() : super.size();
+  }
+
+  public InputStream getInputStream(ZipEntry ze) {
     if (ze == null)
       return null;
+    if (directory != null) {
+      try {
+        ZipDirectory.Entry entry = directory.getEntry(ze.getName());
+        if (entry != null) {
+          return new ByteBufferInputStream(directory.getBuffer(entry));
+        }
+        if (ze.getName().equals(MANIFEST_NAME)) {
+          // A jar without a manifest has an empty one, as when it is scanned.
+          ByteArrayOutputStream baos = new ByteArrayOutputStream();
+          new Manifest().write(baos);
+          return new ByteArrayInputStream(baos.toByteArray());
+        }
+      } catch (IOException e) {
+        throw new RuntimeException("Undefined Error", e);
+      }
+      throw new RuntimeException("Entry not found : " + ze.getName());
+    }
+    return scanInputStream(ze);
+  }
+
+  // Used for nested jars that could not be indexed.
+  protected synchronized InputStream scanInputStream(ZipEntry ze) {
     try {
       try (JarInputStream is = new JarInputStream(super.getInputStream(wrappedJarFile))) {
-        if (filename.equals(MANIFEST_NAME)) {
+        if (ze.getName().equals(MANIFEST_NAME)) {
           ByteArrayOutputStream baos = new ByteArrayOutputStream();
           is.getManifest().write(baos);
           return new ByteArrayInputStream(baos.toByteArray());
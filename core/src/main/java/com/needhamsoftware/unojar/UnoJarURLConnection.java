@@ -16,50 +16,162 @@
 
 package com.needhamsoftware.unojar;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.JarURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
+/**
+ * A connection to an entry of the uno-jar, or of a jar nested within it. Entries held by the
+ * JarClassLoader that created the URL are served from its cache without opening the uno-jar at all.
+ * Other entries are read through a JarFile, which unless useCaches has been turned off is opened once
+ * per nested jar and shared, in the same way as the JDK's own jar: connections share their JarFiles.
+ */
 public class UnoJarURLConnection extends JarURLConnection {
 
+  // Shared handles, by uno-jar path and nested jar name (or "/" for the uno-jar itself), since a VM may run
+  // code from more than one uno-jar. As with the JDK's shared handles these must not be closed by callers.
+  private static final Map<String, JarFile> JAR_FILES = new ConcurrentHashMap<>();
+
+  private static volatile String unoJarPath;
+
+  private final JarClassLoader loader;
   private JarFile jarFile;
+  private String jarFilename;
+  private String filename;
+  private JarClassLoader.ByteCode cached;
 
   public UnoJarURLConnection(URL url) throws MalformedURLException {
+    this(url, null);
+  }
+
+  /**
+   * @param url    the URL to connect to
+   * @param loader the loader whose cache may hold the entry, or null to always read the uno-jar
+   * @throws MalformedURLException if the url is not a jar: URL
+   */
+  public UnoJarURLConnection(URL url, JarClassLoader loader) throws MalformedURLException {
     super(url);
+    this.loader = loader;
   }
 
-  public JarFile getJarFile() {
+  /**
+   * @return the JarFile holding the entry, opened (or shared) when first requested
+   * @throws IOException if it can't be opened
+   */
+  public JarFile getJarFile() throws IOException {
+    connect();
+    if (jarFile == null) {
+      if (getUseCaches()) {
+        String key = getUnoJarPath() + "!/" + jarFilename;
+        jarFile = JAR_FILES.get(key);
+        if (jarFile == null) {
+          JarFile opened = openJarFile();
+          jarFile = JAR_FILES.putIfAbsent(key, opened);
+          if (jarFile == null) {
+            jarFile = opened;
+          } else {
+            opened.close();
+          }
+        }
+      } else {
+        jarFile = openJarFile();
+      }
+    }
     return jarFile;
   }
 
+  private JarFile openJarFile() throws IOException {
+    // TODO: generalize to allow codebase to be a URL.  This may require a complete
+    //  rewrite of OneJarFile since JarFile can only handle Files.
+    if ("/".equals(jarFilename)) {
+      // Entry in the top-level Uno-JAR.
+      return new JarFile(getUnoJarPath());
+    }
+    return new UnoJarFile(getUnoJarPath(), jarFilename, filename);
+  }
+
+  /**
+   * @return the path of the uno-jar of the loader which created the URL, or failing that of the uno-jar
+   * this class was loaded from
+   */
+  private String getUnoJarPath() {
+    if (loader != null) {
+      File file = JarClassLoader.toLocalFile(loader.getOneJarPath());
+      if (file != null) {
+        return file.getPath();
+      }
+    }
+    String path = unoJarPath;
+    if (path == null) {
+      path = UnoJarURLConnection.class.getProtectionDomain().getCodeSource().getLocation().getPath();
+      unoJarPath = path;
+    }
+    return path;
+  }
+
   public void connect() throws IOException {
+    if (connected) {
+      return;
+    }
     String jarWithContent = getEntryName();
+    if (jarWithContent == null) {
+      throw new IOException("no entry in " + url);
+    }
     int separator = jarWithContent.indexOf("!/");
-    // TODO: generalize to allow codebase to be a URL.  This may require a complete
-    //  rewrite of OneJarFile since JarFile can only handle Files.
-    String codebase = this.getClass().getProtectionDomain().getCodeSource().getLocation().getPath();
     // Handle the case where a URL points to the top-level jar file, i.e. no '!/' separator.
     if (separator >= 0) {
-      String jarFilename, filename;
       jarFilename = jarWithContent.substring(0, separator++);
       filename = jarWithContent.substring(++separator);
-      jarFile = new UnoJarFile(codebase, jarFilename, filename);
     } else {
-      // Entry in the top-level Uno-JAR.
-      jarFile = new JarFile(codebase);
+      jarFilename = "/";
+      filename = jarWithContent;
     }
+    if (loader != null) {
+      cached = loader.getEntry(jarFilename, filename);
+    }
+    connected = true;
   }
 
   public InputStream getInputStream() throws IOException {
-    return jarFile.getInputStream(jarFile.getJarEntry(getEntryName()));
+    connect();
+    if (cached != null) {
+      return new ByteBufferInputStream(cached.getBuffer());
+    }
+    JarFile jar = getJarFile();
+    return jar.getInputStream(jar.getJarEntry(getEntryName()));
   }
 
   public int getContentLength() {
-    // Return the size of the jarfile.
-    return jarFile.size();
+    long length = getContentLengthLong();
+    return length > Integer.MAX_VALUE ? -1 : (int) length;
+  }
+
+  public long getContentLengthLong() {
+    try {
+      connect();
+      if (cached != null) {
+        return cached.getLength();
+      }
+      JarFile jar = getJarFile();
+      JarEntry entry = jar.getJarEntry(getEntryName());
+      return entry != null ? entry.getSize() : -1;
+    } catch (IOException iox) {
+      return -1;
+    }
+  }
+
+  /**
+   * @return the time the uno-jar was last modified, as the JDK reports for entries of a jar
+   */
+  public long getLastModified() {
+    return new File(getUnoJarPath()).lastModified();
   }
 
 }
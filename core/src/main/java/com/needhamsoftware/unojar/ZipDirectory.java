@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2019=2020, Needham Software LLC
+ * All rights reserved.
+ *
+ * See the full license at https://github.com/nsoft/uno-jar/blob/master/LICENSE.txt
+ * See addition code licenses at: https://github.com/nsoft/uno-jar/blob/master/NOTICE.txt
+ */
+
+package com.needhamsoftware.unojar;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * A read-only view of a zip (or jar) file held in a buffer. Only the central directory is parsed when
+ * the directory is created; the bytes of individual entries are located and inflated when they are
+ * read. This allows the contents of a nested jar to be indexed without inflating every entry.
+ * <p>
+ * Zip64 archives and spanned archives are not supported, an IOException is thrown for these (and for
+ * corrupt archives) so that callers may fall back to stream processing.
+ */
+public class ZipDirectory {
+
+  private static final int EOCD_SIG = 0x06054b50;
+  private static final int CEN_SIG = 0x02014b50;
+  private static final int LOC_SIG = 0x04034b50;
+  private static final int EOCD_LEN = 22;
+  private static final int CEN_LEN = 46;
+  private static final int LOC_LEN = 30;
+
+  protected final ByteBuffer zip;
+  protected final List<Entry> entries;
+  protected final Map<String, Entry> byName;
+
+  /**
+   * A single entry as described by the central directory.
+   */
+  public static class Entry {
+    public final String name;
+    public final int method;
+    public final long crc;
+    public final long compressedSize;
+    public final long size;
+    public final long headerOffset;
+
+    public Entry(String name, int method, long crc, long compressedSize, long size, long headerOffset) {
+      this.name = name;
+      this.method = method;
+      this.crc = crc;
+      this.compressedSize = compressedSize;
+      this.size = size;
+      this.headerOffset = headerOffset;
+    }
+
+    public boolean isDirectory() {
+      return name.endsWith("/");
+    }
+
+    public String toString() {
+      return name;
+    }
+  }
+
+  /**
+   * Parse the central directory of the zip held in the supplied buffer. The buffer's position and
+   * limit delimit the zip file, and it is not modified.
+   *
+   * @param zip the bytes of a complete zip file
+   * @throws IOException if no central directory can be found, or the archive requires zip64
+   */
+  public ZipDirectory(ByteBuffer zip) throws IOException {
+    this.zip = zip.slice().order(ByteOrder.LITTLE_ENDIAN);
+    int eocd = findEndOfCentralDirectory();
+    int count = this.zip.getShort(eocd + 10) & 0xffff;
+    long cenSize = this.zip.getInt(eocd + 12) & 0xffffffffL;
+    long cenOffset = this.zip.getInt(eocd + 16) & 0xffffffffL;
+    if (count == 0xffff || cenSize == 0xffffffffL || cenOffset == 0xffffffffL) {
+      throw new IOException("zip64 archives are not supported");
+    }
+    if (cenOffset + cenSize > eocd) {
+      throw new IOException("invalid central directory offset " + cenOffset);
+    }
+    List<Entry> list = new ArrayList<>(count);
+    Map<String, Entry> map = new HashMap<>(count * 2);
+    int pos = (int) cenOffset;
+    for (int i = 0; i < count; i++) {
+      if (pos + CEN_LEN > eocd || this.zip.getInt(pos) != CEN_SIG) {
+        throw new IOException("invalid central directory header at " + pos);
+      }
+      int method = this.zip.getShort(pos + 10) & 0xffff;
+      long crc = this.zip.getInt(pos + 16) & 0xffffffffL;
+      long csize = this.zip.getInt(pos + 20) & 0xffffffffL;
+      long size = this.zip.getInt(pos + 24) & 0xffffffffL;
+      int nameLen = this.zip.getShort(pos + 28) & 0xffff;
+      int extraLen = this.zip.getShort(pos + 30) & 0xffff;
+      int commentLen = this.zip.getShort(pos + 32) & 0xffff;
+      long offset = this.zip.getInt(pos + 42) & 0xffffffffL;
+      if (csize == 0xffffffffL || size == 0xffffffffL || offset == 0xffffffffL) {
+        throw new IOException("zip64 archives are not supported");
+      }
+      if (pos + CEN_LEN + nameLen > eocd) {
+        throw new IOException("invalid central directory header at " + pos);
+      }
+      if (offset + LOC_LEN > eocd) {
+        throw new IOException("invalid local header offset " + offset + " at " + pos);
+      }
+      byte[] bytes = new byte[nameLen];
+      ByteBuffer name = this.zip.duplicate();
+      name.position(pos + CEN_LEN);
+      name.get(bytes);
+      Entry entry = new Entry(new String(bytes, StandardCharsets.UTF_8), method, crc, csize, size, offset);
+      list.add(entry);
+      map.putIfAbsent(entry.name, entry);
+      pos += CEN_LEN + nameLen + extraLen + commentLen;
+    }
+    this.entries = Collections.unmodifiableList(list);
+    this.byName = map;
+  }
+
+  /**
+   * Create a directory from entries that were read previously, for example from a {@link JarIndex},
+   * without parsing the central directory again. The entries must describe the zip in the buffer.
+   *
+   * @param zip     the bytes of a complete zip file
+   * @param entries the entries of the zip, in central directory order
+   */
+  public ZipDirectory(ByteBuffer zip, List<Entry> entries) {
+    this.zip = zip.slice().order(ByteOrder.LITTLE_ENDIAN);
+    Map<String, Entry> map = new HashMap<>(entries.size() * 2);
+    for (Entry entry : entries) {
+      map.putIfAbsent(entry.name, entry);
+    }
+    this.entries = Collections.unmodifiableList(new ArrayList<>(entries));
+    this.byName = map;
+  }
+
+  private int findEndOfCentralDirectory() throws IOException {
+    int limit = zip.limit();
+    int stop = Math.max(0, limit - EOCD_LEN - 0xffff);
+    for (int pos = limit - EOCD_LEN; pos >= stop; pos--) {
+      if (zip.getInt(pos) == EOCD_SIG) {
+        return pos;
+      }
+    }
+    throw new IOException("no zip central directory found");
+  }
+
+  /**
+   * @return all entries, in central directory order
+   */
+  public List<Entry> getEntries() {
+    return entries;
+  }
+
+  /**
+   * @param name the name of an entry
+   * @return the entry or null if no entry of that name exists
+   */
+  public Entry getEntry(String name) {
+    return byName.get(name);
+  }
+
+  /**
+   * Read the uncompressed bytes of an entry.
+   *
+   * @param entry an entry belonging to this directory
+   * @return a new array holding the bytes of the entry.
+   * @throws IOException if the entry is corrupt or uses an unsupported compression method.
+   */
+  public byte[] read(Entry entry) throws IOException {
+    if (entry.method != ZipEntry.DEFLATED) {
+      return read(entry, null);
+    }
+    Inflater inflater = new Inflater(true);
+    try {
+      return read(entry, inflater);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /**
+   * Read the uncompressed bytes of an entry using the supplied inflater, which allows callers
+   * reading many entries to reuse inflaters.
+   *
+   * @param entry    an entry belonging to this directory
+   * @param inflater an inflater created with nowrap=true, it is reset before use and not ended.
+   * @return a new array holding the bytes of the entry.
+   * @throws IOException if the entry is corrupt or uses an unsupported compression method.
+   */
+  public byte[] read(Entry entry, Inflater inflater) throws IOException {
+    ByteBuffer raw = getRawBytes(entry);
+    if (entry.size < 0 || entry.size > Integer.MAX_VALUE - 8) {
+      throw new IOException("invalid size " + entry.size + " for " + entry.name);
+    }
+    byte[] bytes = new byte[(int) entry.size];
+    if (entry.method == ZipEntry.STORED) {
+      raw.get(bytes);
+      return bytes;
+    }
+    if (entry.method != ZipEntry.DEFLATED) {
+      throw new IOException("unsupported compression method " + entry.method + " for " + entry.name);
+    }
+    try {
+      inflater.reset();
+      inflater.setInput(raw);
+      int len = 0;
+      while (len < bytes.length) {
+        int n = inflater.inflate(bytes, len, bytes.length - len);
+        if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        len += n;
+      }
+      if (len != bytes.length) {
+        throw new IOException("truncated entry " + entry.name + " (" + len + " of " + bytes.length + " bytes)");
+      }
+      return bytes;
+    } catch (DataFormatException dfx) {
+      throw new IOException("corrupt entry " + entry.name, dfx);
+    }
+  }
+
+  /**
+   * Access the uncompressed bytes of an entry. Stored entries are returned as a read-only slice of the
+   * buffer holding this zip, without copying. Other entries are inflated into a new array.
+   *
+   * @param entry an entry belonging to this directory
+   * @return a read-only buffer holding the bytes of the entry.
+   * @throws IOException if the entry is corrupt or uses an unsupported compression method.
+   */
+  public ByteBuffer getBuffer(Entry entry) throws IOException {
+    if (entry.method == ZipEntry.STORED) {
+      return getRawBytes(entry).slice().asReadOnlyBuffer();
+    }
+    return ByteBuffer.wrap(read(entry)).asReadOnlyBuffer();
+  }
+
+  /**
+   * Locate the (possibly compressed) data for an entry.
+   *
+   * @param entry an entry belonging to this directory
+   * @return a buffer positioned at the first byte of data for the entry, and limited to its compressed size
+   * @throws IOException if the local header for the entry is missing
+   */
+  protected ByteBuffer getRawBytes(Entry entry) throws IOException {
+    if (entry.headerOffset < 0 || entry.headerOffset + LOC_LEN > zip.limit()) {
+      throw new IOException("invalid local header offset " + entry.headerOffset + " for " + entry.name);
+    }
+    int pos = (int) entry.headerOffset;
+    if (zip.getInt(pos) != LOC_SIG) {
+      throw new IOException("invalid local header for " + entry.name);
+    }
+    int nameLen = zip.getShort(pos + 26) & 0xffff;
+    int extraLen = zip.getShort(pos + 28) & 0xffff;
+    int start = pos + LOC_LEN + nameLen + extraLen;
+    if (entry.compressedSize < 0 || start + entry.compressedSize > zip.limit()) {
+      throw new IOException("truncated entry " + entry.name);
+    }
+    ByteBuffer raw = zip.duplicate();
+    raw.limit(start + (int) entry.compressedSize).position(start);
+    return raw;
+  }
+}
@@ -0,0 +1,22 @@
+package com.needhamsoftware.probe;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Packed into nested jars by the tests so that it is defined by a JarClassLoader. It lives outside the
+ * com.needhamsoftware.unojar package, which the loader never treats as a calling class.
+ */
+public class Probe {
+
+  /**
+   * @param resource the name of a resource
+   * @return the resource as seen by this class, or null if it was not found
+   */
+  public static String read(String resource) throws IOException {
+    try (InputStream in = Probe.class.getClassLoader().getResourceAsStream(resource)) {
+      return in == null ? null : new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    }
+  }
+}
@@ -0,0 +1,67 @@
+package com.needhamsoftware.unojar;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class ClassPathIndexTest extends TestCase {
+
+  private File dir;
+
+  protected void setUp() throws Exception {
+    dir = Jars.tempDir();
+  }
+
+  protected void tearDown() {
+    Jars.delete(dir);
+  }
+
+  @Test
+  public void testJarsAndDirectories() throws Exception {
+    File jar = new Jars()
+        .add("com/example/Foo.class", "not really")
+        .add("META-INF/versions/11/com/example/Bar.class", "not really")
+        .write(new File(dir, "ext.jar"));
+    File classes = new File(dir, "classes");
+    assertTrue(classes.mkdir());
+    ClassPathIndex index = new ClassPathIndex(new URL[]{jar.toURI().toURL(), classes.toURI().toURL()});
+    assertTrue(index.mayContain("com/example/Foo.class"));
+    // versioned entries are known by their unversioned name too
+    assertTrue(index.mayContain("com/example/Bar.class"));
+    assertFalse(index.mayContain("com/example/Missing.class"));
+
+    // directories are checked on every lookup
+    File data = new File(classes, "data/a.txt");
+    assertTrue(data.getParentFile().mkdir());
+    Files.write(data.toPath(), "a".getBytes(StandardCharsets.UTF_8));
+    assertTrue(index.mayContain("data/a.txt"));
+  }
+
+  @Test
+  public void testClassPathAttributeRulesNothingOut() throws Exception {
+    File jar = new Jars()
+        .add("META-INF/MANIFEST.MF", "Manifest-Version: 1.0\r\nClass-Path: other.jar\r\n\r\n")
+        .add("com/example/Foo.class", "not really")
+        .write(new File(dir, "ext.jar"));
+    ClassPathIndex index = new ClassPathIndex(new URL[]{jar.toURI().toURL()});
+    assertTrue(index.mayContain("com/example/Missing.class"));
+  }
+
+  @Test
+  public void testRemoteUrlRulesNothingOut() throws Exception {
+    ClassPathIndex index = new ClassPathIndex(new URL[]{new URL("http://example.com/ext.jar")});
+    assertTrue(index.mayContain("com/example/Missing.class"));
+  }
+
+  @Test
+  public void testUnreadableJarRulesNothingOut() throws Exception {
+    File jar = new File(dir, "broken.jar");
+    Files.write(jar.toPath(), "not a jar".getBytes(StandardCharsets.UTF_8));
+    ClassPathIndex index = new ClassPathIndex(new URL[]{jar.toURI().toURL()});
+    assertTrue(index.mayContain("com/example/Missing.class"));
+  }
+}
@@ -0,0 +1,64 @@
+package com.needhamsoftware.unojar;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class ContentStoreTest extends TestCase {
+
+  private static byte[] bytes(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testSharesIdenticalContent() {
+    ContentStore store = new ContentStore(null);
+    byte[] first = bytes("license text");
+    assertSame(first, store.intern(first));
+    assertSame(first, store.intern(bytes("license text")));
+    byte[] other = bytes("other text!!");
+    assertSame(other, store.intern(other));
+    assertEquals(36, store.getRequested());
+    assertEquals(24, store.getStored());
+  }
+
+  @Test
+  public void testOffHeap() {
+    ContentStore store = new ContentStore(new OffHeapStore(1024));
+    assertTrue(store.isOffHeap());
+    ByteBuffer first = store.internDirect(bytes("hello"));
+    assertTrue(first.isDirect());
+    assertSame(first, store.internDirect(bytes("hello")));
+    // heap and off-heap payloads are never mixed up
+    byte[] heap = bytes("hello");
+    assertSame(heap, store.intern(heap));
+  }
+
+  @Test
+  public void testNoOffHeapStore() {
+    try {
+      new ContentStore(null).internDirect(bytes("hello"));
+      fail("expected IllegalStateException");
+    } catch (IllegalStateException expected) {
+      // only available with an off-heap store
+    }
+  }
+
+  @Test
+  public void testCollectedPayloadsLeaveTheTable() throws Exception {
+    ContentStore store = new ContentStore(null);
+    byte[] kept = bytes("kept");
+    store.intern(kept);
+    for (int i = 0; i < 1000; i++) {
+      store.intern(bytes("payload " + i));
+    }
+    for (int i = 0; i < 50 && store.size() > 1; i++) {
+      System.gc();
+      Thread.sleep(20);
+    }
+    assertEquals(1, store.size());
+    assertSame(kept, store.intern(bytes("kept")));
+  }
+}
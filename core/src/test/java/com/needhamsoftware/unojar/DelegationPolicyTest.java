@@ -0,0 +1,66 @@
+package com.needhamsoftware.unojar;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import static com.needhamsoftware.unojar.DelegationPolicy.Route.LOCAL;
+import static com.needhamsoftware.unojar.DelegationPolicy.Route.PARENT;
+import static com.needhamsoftware.unojar.DelegationPolicy.Route.PLATFORM;
+
+public class DelegationPolicyTest extends TestCase {
+
+  @Test
+  public void testParentByDefault() {
+    DelegationPolicy policy = new DelegationPolicy("");
+    assertEquals(PARENT, policy.route("com.example"));
+    assertEquals(PARENT, policy.route(""));
+  }
+
+  @Test
+  public void testMostSpecificRuleWins() {
+    DelegationPolicy policy = new DelegationPolicy(" *=local , org.slf4j.*=parent, org.slf4j.impl=LOCAL,com.example=parent");
+    assertEquals(LOCAL, policy.route("com.other"));
+    assertEquals(PARENT, policy.route("org.slf4j"));
+    assertEquals(PARENT, policy.route("org.slf4j.helpers"));
+    assertEquals(LOCAL, policy.route("org.slf4j.impl"));
+    assertEquals(PARENT, policy.route("com.example"));
+    // a package rule does not cover sub packages
+    assertEquals(LOCAL, policy.route("com.example.sub"));
+    // nor does a tree rule cover packages which merely share a prefix
+    assertEquals(LOCAL, policy.route("org.slf4jx"));
+  }
+
+  @Test
+  public void testClassesAndResources() {
+    DelegationPolicy policy = new DelegationPolicy("com.example.*=local");
+    assertEquals(LOCAL, policy.routeClass("com.example.Foo"));
+    assertEquals(LOCAL, policy.routeClass("com.example.sub.Foo$Inner"));
+    assertEquals(PARENT, policy.routeClass("Foo"));
+    assertEquals(LOCAL, policy.routeResource("com/example/foo.properties"));
+    assertEquals(LOCAL, policy.routeResource("/com/example/foo.properties"));
+    assertEquals(PARENT, policy.routeResource("foo.properties"));
+    assertEquals(PARENT, policy.routeResource("/foo.properties"));
+  }
+
+  @Test
+  public void testPlatformPackagesGoToTheParent() {
+    DelegationPolicy policy = new DelegationPolicy("*=local");
+    assertEquals(PLATFORM, policy.route("java.lang"));
+    assertEquals(PLATFORM, policy.routeClass("java.util.List"));
+    // packages of modules in the boot layer
+    assertEquals(PARENT, policy.route("javax.net"));
+    assertEquals(PARENT, policy.routeResource("javax/net/ssl/foo.properties"));
+  }
+
+  @Test
+  public void testInvalidRules() {
+    for (String spec : new String[]{"com.example", "com.example=sideways", "*=platform"}) {
+      try {
+        new DelegationPolicy(spec);
+        fail("expected IllegalArgumentException for " + spec);
+      } catch (IllegalArgumentException expected) {
+        assertTrue(expected.getMessage().startsWith("invalid delegation rule"));
+      }
+    }
+  }
+}
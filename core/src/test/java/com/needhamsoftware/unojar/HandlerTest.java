@@ -0,0 +1,77 @@
+package com.needhamsoftware.unojar;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class HandlerTest extends TestCase {
+
+  private File dir;
+  private ClassLoader context;
+  private JarClassLoader loader;
+
+  protected void setUp() throws Exception {
+    dir = Jars.tempDir();
+    context = Thread.currentThread().getContextClassLoader();
+    File unoJar = new Jars()
+        .add("data/top.txt", "top")
+        .add("lib/a.jar", new Jars().add("data/shared.txt", "from a"))
+        .add("lib/b.jar", new Jars().add("data/shared.txt", "from b"))
+        .write(new File(dir, "test.jar"));
+    // the factory is loaded by name, so the parent must see uno-jar's own classes
+    loader = new JarClassLoader(HandlerTest.class.getClassLoader(), unoJar.toURI().toString());
+    loader.load(null);
+    loader.setURLFactory(JarClassLoader.UnoJarURLFactory.class.getName());
+  }
+
+  protected void tearDown() {
+    Thread.currentThread().setContextClassLoader(context);
+    Jars.delete(dir);
+  }
+
+  private static String read(URL url) throws Exception {
+    try (InputStream in = url.openStream()) {
+      return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    }
+  }
+
+  @Test
+  public void testUrlsNameTheirJar() throws Exception {
+    URL top = loader.findResource("data/top.txt");
+    assertEquals("onejar:/!/data/top.txt", top.toString());
+    assertEquals("top", read(top));
+
+    List<URL> found = Collections.list(loader.findResources("data/shared.txt"));
+    List<String> urls = new ArrayList<>();
+    List<String> contents = new ArrayList<>();
+    for (URL url : found) {
+      urls.add(url.toString());
+      contents.add(read(url));
+    }
+    assertEquals(List.of("onejar:/lib/a.jar!/data/shared.txt", "onejar:/lib/b.jar!/data/shared.txt"), urls);
+    assertEquals(List.of("from a", "from b"), contents);
+
+    // opened against the loader, no protocol handler is registered for onejar:
+    URLConnection connection = found.get(1).openConnection();
+    assertEquals(6, connection.getContentLengthLong());
+  }
+
+  @Test
+  public void testUrlsCachedPerEntry() throws Exception {
+    URL url = loader.findResource("data/top.txt");
+    assertSame(url, loader.findResource("/data/top.txt"));
+    // replacing the factory replaces the URLs
+    loader.setURLFactory(JarClassLoader.FileURLFactory.class.getName());
+    URL file = loader.findResource("data/top.txt");
+    assertEquals("jar", file.getProtocol());
+    assertEquals("top", read(file));
+  }
+}
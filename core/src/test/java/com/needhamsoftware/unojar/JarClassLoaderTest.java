@@ -0,0 +1,650 @@
+package com.needhamsoftware.unojar;
+
+import com.needhamsoftware.probe.Probe;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+public class JarClassLoaderTest extends TestCase {
+
+  private static final String PROBE = "com/needhamsoftware/probe/Probe.class";
+
+  private File dir;
+  private ClassLoader context;
+
+  protected void setUp() throws Exception {
+    dir = Jars.tempDir();
+    // loadClass makes the JarClassLoader the context classloader
+    context = Thread.currentThread().getContextClassLoader();
+  }
+
+  protected void tearDown() {
+    Logger.setLevel(Logger.LOGLEVEL_NONE);
+    System.clearProperty(JarClassLoader.P_EXPAND_DIR);
+    Thread.currentThread().setContextClassLoader(context);
+    Jars.delete(dir);
+  }
+
+  private File unoJar(Jars jars) throws IOException {
+    return jars.write(new File(dir, "test.jar"));
+  }
+
+  /**
+   * A loader for the uno-jar, which has not loaded it yet. Its parent is the platform classloader so that
+   * test classes packed into the uno-jar are defined by it rather than found on the test classpath.
+   */
+  private static JarClassLoader loader(File unoJar) {
+    return new JarClassLoader(ClassLoader.getPlatformClassLoader(), unoJar.toURI().toString());
+  }
+
+  private static JarClassLoader load(File unoJar) {
+    JarClassLoader loader = loader(unoJar);
+    loader.load(null);
+    return loader;
+  }
+
+  /**
+   * A mapping loader which counts the times it has to scan the nested jars for want of an index.
+   */
+  private static JarClassLoader scanning(File unoJar, AtomicInteger scans) {
+    JarClassLoader loader = new JarClassLoader(ClassLoader.getPlatformClassLoader(), unoJar.toURI().toString()) {
+      @Override
+      protected JarIndex scanIndex(ZipDirectory jar) {
+        scans.incrementAndGet();
+        return super.scanIndex(jar);
+      }
+    };
+    loader.mmap = true;
+    loader.load(null);
+    return loader;
+  }
+
+  private static JarIndex readIndex(File file) throws IOException {
+    try (InputStream in = new FileInputStream(file)) {
+      return JarIndex.read(in);
+    }
+  }
+
+  /**
+   * @return what the loader logs while running the action at the given level
+   */
+  private static String logged(int level, Runnable action) {
+    PrintStream out = System.out;
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    System.setOut(new PrintStream(baos, true, StandardCharsets.UTF_8));
+    Logger.setLevel(level);
+    try {
+      action.run();
+    } finally {
+      Logger.setLevel(Logger.LOGLEVEL_NONE);
+      System.setOut(out);
+    }
+    return baos.toString(StandardCharsets.UTF_8);
+  }
+
+  private static String read(InputStream is) throws IOException {
+    try (InputStream in = is) {
+      return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    }
+  }
+
+  private static byte[] probe() throws IOException {
+    try (InputStream in = JarClassLoaderTest.class.getClassLoader().getResourceAsStream(PROBE)) {
+      return in.readAllBytes();
+    }
+  }
+
+  private File libs() throws IOException {
+    return unoJar(new Jars()
+        .add("lib/a.jar", new Jars().add("data/a.txt", "a").add("data/shared.txt", "from a"))
+        .add("lib/b.jar", new Jars().add("data/b.txt", "b").add("data/shared.txt", "from b")));
+  }
+
+  @Test
+  public void testLoadsLibJars() throws Exception {
+    JarClassLoader loader = load(libs());
+    assertEquals("a", read(loader.getResourceAsStream("data/a.txt")));
+    assertEquals("b", read(loader.getResourceAsStream("data/b.txt")));
+    assertEquals("from a", read(loader.getResourceAsStream("data/shared.txt")));
+    assertNull(loader.getResourceAsStream("data/missing.txt"));
+  }
+
+  @Test
+  public void testParallelCapable() throws Exception {
+    JarClassLoader loader = load(libs());
+    assertTrue(loader.isRegisteredAsParallelCapable());
+    ExecutorService threads = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<String>> results = new ArrayList<>();
+      for (int i = 0; i < 200; i++) {
+        String name = i % 2 == 0 ? "data/a.txt" : "data/b.txt";
+        results.add(threads.submit(() -> read(loader.getResourceAsStream(name))));
+      }
+      for (int i = 0; i < results.size(); i++) {
+        assertEquals(i % 2 == 0 ? "a" : "b", results.get(i).get());
+      }
+    } finally {
+      threads.shutdown();
+    }
+  }
+
+  @Test
+  public void testParallelPreparationRegistersInJarOrder() throws Exception {
+    Jars jars = new Jars();
+    for (int i = 0; i < 6; i++) {
+      Jars lib = new Jars().add("data/shared.txt", "from " + i);
+      for (int j = 0; j < 20; j++) {
+        lib.add("data/" + i + "/" + j + ".txt", content(i, j));
+      }
+      jars.add("lib/" + i + ".jar", lib);
+    }
+    File unoJar = unoJar(jars);
+    for (boolean mmap : new boolean[]{false, true}) {
+      List<String> prepared = Collections.synchronizedList(new ArrayList<>());
+      CountDownLatch others = new CountDownLatch(5);
+      JarClassLoader loader = new JarClassLoader(ClassLoader.getPlatformClassLoader(), unoJar.toURI().toString()) {
+        @Override
+        protected PreparedJar prepareJar(ByteBuffer bytes, String jar, List<ZipDirectory.Entry> indexed) throws IOException {
+          PreparedJar result = super.prepareJar(bytes, jar, indexed);
+          if (jar.equals("lib/0.jar")) {
+            // the first jar is the last to be ready, a managed block lets the pool carry on with the others
+            // even when it has a single thread
+            awaitManaged(others);
+          }
+          prepared.add(jar);
+          others.countDown();
+          return result;
+        }
+      };
+      loader.parallel = true;
+      loader.mmap = mmap;
+      loader.load(null);
+      assertEquals(6, prepared.size());
+      assertEquals("lib/0.jar", prepared.get(5));
+      assertEquals("from 0", read(loader.getResourceAsStream("data/shared.txt")));
+      // entries inflated at the same time on different threads each come out whole
+      for (int i = 0; i < 6; i++) {
+        for (int j = 0; j < 20; j++) {
+          assertEquals(content(i, j), read(loader.getResourceAsStream("data/" + i + "/" + j + ".txt")));
+        }
+      }
+    }
+  }
+
+  private static void awaitManaged(CountDownLatch latch) {
+    try {
+      ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+        @Override
+        public boolean block() throws InterruptedException {
+          return latch.await(10, TimeUnit.SECONDS);
+        }
+
+        @Override
+        public boolean isReleasable() {
+          return latch.getCount() == 0;
+        }
+      });
+    } catch (InterruptedException ix) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static String content(int jar, int entry) {
+    StringBuilder content = new StringBuilder();
+    for (int k = 0; k < 500; k++) {
+      content.append(jar).append('/').append(entry).append(':').append(k).append('\n');
+    }
+    return content.toString();
+  }
+
+  @Test
+  public void testReleasedClassBytesAreReadAgain() throws Exception {
+    byte[] probe = probe();
+    JarClassLoader loader = loader(unoJar(new Jars().add("lib/probe.jar", new Jars().add(PROBE, probe))));
+    loader.release = true;
+    loader.load(null);
+    Class<?> cls = loader.loadClass(Probe.class.getName());
+    assertSame(loader, cls.getClassLoader());
+    JarClassLoader.ByteCode code = loader.byteCode.get(PROBE);
+    assertTrue(code.released);
+    assertNull(code.bytes);
+    try (InputStream in = loader.getResourceAsStream(PROBE)) {
+      assertTrue(Arrays.equals(probe, in.readAllBytes()));
+    }
+    // still not held once read again
+    assertNull(code.bytes);
+  }
+
+  @Test
+  public void testClassBytesReadOnceWhenDefined() throws Exception {
+    AtomicInteger reads = new AtomicInteger();
+    ZipDirectory jar = new ZipDirectory(ByteBuffer.wrap(new Jars().add(PROBE, probe()).toBytes())) {
+      @Override
+      public byte[] read(Entry entry) throws IOException {
+        reads.incrementAndGet();
+        return super.read(entry);
+      }
+    };
+    ZipDirectory.Entry entry = jar.getEntry(PROBE);
+    assertTrue(entry.method != ZipEntry.STORED);
+    JarClassLoader loader = load(unoJar(new Jars().add("data/a.txt", "a")));
+    JarClassLoader.ByteCode code = new JarClassLoader.ByteCode(PROBE, jar, entry, null, "lib/probe.jar", null, 0);
+    // a released entry keeps nothing it reads, so each look at it inflates it again
+    code.released = true;
+    loader.byteCode.put(PROBE, code);
+    Class<?> cls = loader.loadClass(Probe.class.getName());
+    assertSame(loader, cls.getClassLoader());
+    assertEquals(1, reads.get());
+  }
+
+  @Test
+  public void testOnlyOwnClassesCached() throws Exception {
+    JarClassLoader loader = load(unoJar(new Jars().add("lib/probe.jar", new Jars().add(PROBE, probe()))));
+    Class<?> probe = loader.loadClass(Probe.class.getName());
+    assertSame(probe, loader.loaded.get(Probe.class.getName()));
+    assertSame(probe, loader.loadClass(Probe.class.getName()));
+    // classes of the parent are left to the parent
+    assertSame(String.class, loader.loadClass("java.lang.String"));
+    assertFalse(loader.loaded.containsKey("java.lang.String"));
+  }
+
+  @Test
+  public void testIndexCachedUnderExpandDir() throws Exception {
+    File unoJar = unoJar(new Jars()
+        .add("lib/a.jar", new Jars().add("data/a.txt", "a"))
+        .add("lib/b.jar", new Jars().add("data/b.txt", "b"))
+        .stored());
+    File expand = new File(dir, "expand");
+    System.setProperty(JarClassLoader.P_EXPAND_DIR, expand.getPath());
+    AtomicInteger scans = new AtomicInteger();
+
+    JarClassLoader first = scanning(unoJar, scans);
+    assertEquals(1, scans.get());
+    assertEquals("b", read(first.getResourceAsStream("data/b.txt")));
+    File[] cached = new File(expand, "index").listFiles();
+    assertEquals(1, cached.length);
+    assertTrue(cached[0].getName().endsWith(".idx"));
+    JarIndex index = readIndex(cached[0]);
+    assertNotNull(index.getJar("lib/a.jar"));
+    assertNotNull(index.getJar("lib/b.jar"));
+
+    // a later run reads the cached index rather than scanning again
+    JarClassLoader second = scanning(unoJar, scans);
+    assertEquals(1, scans.get());
+    assertEquals("a", read(second.getResourceAsStream("data/a.txt")));
+    assertEquals("b", read(second.getResourceAsStream("data/b.txt")));
+
+    // and a damaged cache is replaced
+    Files.write(cached[0].toPath(), "damaged".getBytes(StandardCharsets.UTF_8));
+    JarClassLoader third = scanning(unoJar, scans);
+    assertEquals(2, scans.get());
+    assertEquals("a", read(third.getResourceAsStream("data/a.txt")));
+    assertNotNull(readIndex(cached[0]).getJar("lib/a.jar"));
+  }
+
+  @Test
+  public void testCompressedJarsIndexedUnderExpandDir() throws Exception {
+    File unoJar = unoJar(new Jars()
+        .add("lib/a.jar", new Jars().add("data/a.txt", "a"))
+        .add("lib/b.jar", new Jars().add("data/b.txt", "b")));
+    File expand = new File(dir, "expand");
+    System.setProperty(JarClassLoader.P_EXPAND_DIR, expand.getPath());
+    AtomicInteger scans = new AtomicInteger();
+
+    scanning(unoJar, scans);
+    File[] cached = new File(expand, "index").listFiles();
+    assertEquals(1, cached.length);
+    assertNotNull(readIndex(cached[0]).getJar("lib/a.jar"));
+    assertNotNull(readIndex(cached[0]).getJar("lib/b.jar"));
+
+    JarClassLoader second = scanning(unoJar, scans);
+    assertEquals(1, scans.get());
+    assertEquals("b", read(second.getResourceAsStream("data/b.txt")));
+
+    // a cache whose counts are damaged is a miss, and is replaced
+    byte[] damaged = Files.readAllBytes(cached[0].toPath());
+    ByteBuffer.wrap(damaged).putInt(8, -1);
+    Files.write(cached[0].toPath(), damaged);
+    JarClassLoader third = scanning(unoJar, scans);
+    assertEquals(2, scans.get());
+    assertEquals("a", read(third.getResourceAsStream("data/a.txt")));
+    assertNotNull(readIndex(cached[0]).getJar("lib/a.jar"));
+  }
+
+  @Test
+  public void testLibrariesCachedUnderExpandDir() throws Exception {
+    String library = "binlib/linux64/libprobe.so";
+    File unoJar = unoJar(new Jars().add(library, "native code"));
+    File cache = new File(dir, "binlib");
+    JarClassLoader loader = loader(unoJar);
+    try (JarFile jar = new JarFile(unoJar)) {
+      JarEntry entry = jar.getJarEntry(library);
+      File target = loader.extractCached(jar, entry, cache);
+      assertEquals("native code", new String(Files.readAllBytes(target.toPath()), StandardCharsets.UTF_8));
+      assertEquals(cache, target.getParentFile().getParentFile());
+      assertEquals("libprobe.so", target.getName());
+
+      // the library left by an earlier run is used as it is
+      assertTrue(target.setLastModified(1000000000000L));
+      assertEquals(target, loader.extractCached(jar, entry, cache));
+      assertEquals(1000000000000L, target.lastModified());
+
+      // one of the same size but other content is extracted again
+      Files.write(target.toPath(), "other stuff".getBytes(StandardCharsets.UTF_8));
+      assertEquals(target, loader.extractCached(jar, entry, cache));
+      assertEquals("native code", new String(Files.readAllBytes(target.toPath()), StandardCharsets.UTF_8));
+
+      // as is one of the wrong size
+      Files.write(target.toPath(), "truncated".getBytes(StandardCharsets.UTF_8));
+      assertEquals(target, loader.extractCached(jar, entry, cache));
+      assertEquals("native code", new String(Files.readAllBytes(target.toPath()), StandardCharsets.UTF_8));
+      assertEquals(1, target.getParentFile().list().length);
+    }
+  }
+
+  @Test
+  public void testSameLibraryExtractedConcurrently() throws Exception {
+    // the same library for any platform and for this one, which share a place in the cache
+    File unoJar = unoJar(new Jars()
+        .add("binlib/libprobe.so", "native code")
+        .add("binlib/linux64/libprobe.so", "native code"));
+    File cache = new File(dir, "binlib");
+    ExecutorService threads = Executors.newFixedThreadPool(8);
+    try (JarFile jar = new JarFile(unoJar)) {
+      List<Future<File>> results = new ArrayList<>();
+      for (int i = 0; i < 32; i++) {
+        // a loader each, as two loaders in a VM would be
+        JarClassLoader loader = loader(unoJar);
+        JarEntry entry = jar.getJarEntry(i % 2 == 0 ? "binlib/libprobe.so" : "binlib/linux64/libprobe.so");
+        results.add(threads.submit(() -> loader.extractCached(jar, entry, cache)));
+      }
+      File target = results.get(0).get();
+      for (Future<File> result : results) {
+        assertEquals(target, result.get());
+      }
+      assertEquals("native code", new String(Files.readAllBytes(target.toPath()), StandardCharsets.UTF_8));
+    } finally {
+      threads.shutdown();
+    }
+  }
+
+  @Test
+  public void testLibOrderWithSpaces() throws Exception {
+    assertEquals(List.of("lib/my lib.jar", "lib/100%.jar", "lib/a.jar"),
+        JarClassLoader.splitNames(" lib/my%20lib.jar  lib/100%25.jar\tlib/a.jar "));
+    // jars stored in another order than declared still resolve shared entries in the declared order
+    File unoJar = unoJar(new Jars()
+        .add("META-INF/MANIFEST.MF", "Manifest-Version: 1.0\r\n"
+            + Boot.ONE_JAR_LIB_ORDER + ": lib/b%20b.jar lib/a.jar\r\n\r\n")
+        .add("lib/a.jar", new Jars().add("data/shared.txt", "from a"))
+        .add("lib/b b.jar", new Jars().add("data/shared.txt", "from b")));
+    JarClassLoader loader = load(unoJar);
+    assertEquals(2, loader.libOrder.size());
+    assertEquals(Integer.valueOf(0), loader.libOrder.get("lib/b b.jar"));
+    assertEquals("from b", read(loader.getResourceAsStream("data/shared.txt")));
+  }
+
+  @Test
+  @SuppressWarnings("deprecation")
+  public void testPackagesWaitForBackgroundJars() throws Exception {
+    File unoJar = unoJar(new Jars()
+        .add("lib/probe.jar", new Jars()
+            .add("META-INF/MANIFEST.MF", "Manifest-Version: 1.0\r\nImplementation-Title: probe\r\n\r\n")
+            .add(PROBE, probe()))
+        .stored());
+    JarClassLoader loader = new JarClassLoader(ClassLoader.getPlatformClassLoader(), unoJar.toURI().toString()) {
+      @Override
+      protected Manifest registerPrepared(PreparedJar prepared) throws IOException {
+        if (Thread.currentThread() == backgroundLoader) {
+          try {
+            Thread.sleep(200);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        return super.registerPrepared(prepared);
+      }
+    };
+    loader.lazy = true;
+    loader.background = true;
+    loader.load(null);
+    assertNotNull(loader.pendingJars);
+    Package pkg = loader.getPackage("com.needhamsoftware.probe");
+    assertNotNull(pkg);
+    assertEquals("probe", pkg.getImplementationTitle());
+  }
+
+  @Test
+  public void testBackgroundNeedsAMappableJar() throws Exception {
+    // an uno-jar inside another jar can only be read as a stream
+    File outer = new Jars().add("test.jar", new Jars().add("lib/a.jar", new Jars().add("data/a.txt", "a")))
+        .write(new File(dir, "outer.jar"));
+    JarClassLoader loader = new JarClassLoader(ClassLoader.getPlatformClassLoader(), "jar:" + outer.toURI() + "!/test.jar");
+    loader.background = true;
+    String verbose = logged(Logger.LOGLEVEL_VERBOSE, () -> loader.load(null));
+    assertTrue(verbose, verbose.contains(JarClassLoader.P_BACKGROUND + " needs an uno-jar which can be mapped"));
+    assertNull(loader.pendingJars);
+    assertEquals("a", read(loader.getResourceAsStream("data/a.txt")));
+  }
+
+  @Test
+  public void testCallerJarFirst() throws Exception {
+    File unoJar = unoJar(new Jars()
+        .add("lib/a.jar", new Jars().add("data/shared.txt", "from a"))
+        .add("lib/b.jar", new Jars().add("data/shared.txt", "from b").add(PROBE, probe())));
+    JarClassLoader loader = load(unoJar);
+    Class<?> probe = loader.loadClass(Probe.class.getName());
+    // a class in lib/b.jar sees its own copy first, everyone else sees the first jar's
+    assertEquals("from b", probe.getMethod("read", String.class).invoke(null, "data/shared.txt"));
+    assertEquals("from a", read(loader.getResourceAsStream("data/shared.txt")));
+  }
+
+  @Test
+  public void testFindResourceLogsAtItsLevel() throws Exception {
+    JarClassLoader loader = load(libs());
+    String info = logged(Logger.LOGLEVEL_INFO, () -> {
+      assertNotNull(loader.findResource("data/a.txt"));
+      assertNull(loader.findResource("data/missing.txt"));
+    });
+    assertFalse(info, info.contains("FINE:"));
+    assertTrue(info, info.contains("findResource() found: \"data/a.txt\""));
+    assertTrue(info, info.contains("findResource(): unable to locate \"data/missing.txt\""));
+    String verbose = logged(Logger.LOGLEVEL_VERBOSE, () -> loader.findResource("data/a.txt"));
+    assertTrue(verbose, verbose.contains("FINE:  findResource(\"data/a.txt\")"));
+  }
+
+  @Test
+  public void testFindResourcesInJarOrder() throws Exception {
+    JarClassLoader loader = load(libs());
+    List<String> found = new ArrayList<>();
+    String info = logged(Logger.LOGLEVEL_INFO, () -> {
+      try {
+        for (URL url : Collections.list(loader.findResources("data/shared.txt"))) {
+          found.add(read(url.openStream()));
+        }
+      } catch (IOException iox) {
+        throw new UncheckedIOException(iox);
+      }
+    });
+    assertEquals(List.of("from a", "from b"), found);
+    assertEquals("", info);
+    assertFalse(loader.findResources("data/missing.txt").hasMoreElements());
+    String verbose = logged(Logger.LOGLEVEL_VERBOSE, () -> {
+      try {
+        Collections.list(loader.findResources("data/shared.txt"));
+      } catch (IOException iox) {
+        throw new UncheckedIOException(iox);
+      }
+    });
+    assertTrue(verbose, verbose.contains("FINE:  findResources(data/shared.txt)"));
+    assertTrue(verbose, verbose.contains("FINE:  findResources(): returning "));
+  }
+
+  @Test
+  public void testServiceProviders() throws Exception {
+    String service = "com.example.Service";
+    Jars a = new Jars().add(ServiceIndex.SERVICES + service, "com.example.A\n");
+    Jars b = new Jars().add(ServiceIndex.SERVICES + service, "# comment\ncom.example.B\ncom.example.A\n");
+    JarClassLoader scanned = load(unoJar(new Jars().add("lib/a.jar", a).add("lib/b.jar", b)));
+    assertEquals(List.of("com.example.A", "com.example.B"), scanned.getServiceProviders(service));
+    assertTrue(scanned.getServiceProviders("com.example.Missing").isEmpty());
+
+    // with an index built into the uno-jar the provider files are not read at all
+    ServiceIndex index = new ServiceIndex();
+    index.add(service, "lib/a.jar", List.of("com.example.Indexed"));
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    index.write(baos);
+    JarClassLoader indexed = load(unoJar(new Jars()
+        .add(ServiceIndex.NAME, baos.toByteArray())
+        .add("lib/a.jar", a)
+        .add("lib/b.jar", b)));
+    assertEquals(List.of("com.example.Indexed"), indexed.getServiceProviders(service));
+  }
+
+  @Test
+  public void testServiceProvidersInDeclaredOrder() throws Exception {
+    String service = "com.example.Service";
+    Jars a = new Jars().add(ServiceIndex.SERVICES + service, "com.example.A\n");
+    Jars b = new Jars().add(ServiceIndex.SERVICES + service, "com.example.B\n");
+    String manifest = "Manifest-Version: 1.0\r\n" + Boot.ONE_JAR_LIB_ORDER + ": lib/b.jar lib/a.jar\r\n\r\n";
+    ServiceIndex index = new ServiceIndex();
+    index.add(service, "lib/a.jar", List.of("com.example.A"));
+    index.add(service, "lib/b.jar", List.of("com.example.B"));
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    index.write(baos);
+    // stored a then b, as a profile might, but declared b then a
+    JarClassLoader scanned = load(unoJar(new Jars()
+        .add("META-INF/MANIFEST.MF", manifest)
+        .add("lib/a.jar", a)
+        .add("lib/b.jar", b)));
+    JarClassLoader indexed = load(unoJar(new Jars()
+        .add("META-INF/MANIFEST.MF", manifest)
+        .add(ServiceIndex.NAME, baos.toByteArray())
+        .add("lib/a.jar", a)
+        .add("lib/b.jar", b)));
+    List<String> found = new ArrayList<>();
+    for (URL url : Collections.list(scanned.findResources(ServiceIndex.SERVICES + service))) {
+      found.add(read(url.openStream()).trim());
+    }
+    assertEquals(List.of("com.example.B", "com.example.A"), found);
+    assertEquals(found, scanned.getServiceProviders(service));
+    assertEquals(found, indexed.getServiceProviders(service));
+  }
+
+  private static String string(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testResourceBuffers() throws Exception {
+    JarClassLoader loader = load(libs());
+    ByteBuffer buffer = loader.getResourceBuffer("data/a.txt");
+    assertTrue(buffer.isReadOnly());
+    assertEquals("a", string(buffer));
+    // each caller gets its own view
+    assertEquals("a", string(loader.getResourceBuffer("/data/a.txt")));
+    assertEquals("from a", string(loader.getResourceBuffer("data/shared.txt")));
+    assertNull(loader.getResourceBuffer("data/missing.txt"));
+    // the parent is not consulted
+    assertNull(loader.getResourceBuffer("java/lang/Object.class"));
+  }
+
+  @Test
+  public void testMappedResourceBuffersAreNotCopied() throws Exception {
+    File unoJar = unoJar(new Jars()
+        .add("lib/a.jar", new Jars().add("data/a.txt", "stored").stored())
+        .stored());
+    JarClassLoader loader = loader(unoJar);
+    loader.mmap = true;
+    loader.load(null);
+    ByteBuffer buffer = loader.getResourceBuffer("data/a.txt");
+    assertTrue(buffer.isDirect());
+    assertTrue(buffer.isReadOnly());
+    assertEquals("stored", string(buffer));
+  }
+
+  @Test
+  public void testMissesRecordedOnceLoaded() throws Exception {
+    JarClassLoader loader = loader(libs());
+    loader.missingClasses = ConcurrentHashMap.newKeySet();
+    loader.missingResources = ConcurrentHashMap.newKeySet();
+    // nothing is cached before loading, so nothing can be known to be missing
+    assertNull(loader.getResource("data/a.txt"));
+    assertTrue(loader.missingResources.isEmpty());
+
+    loader.load(null);
+    assertNotNull(loader.getResource("data/a.txt"));
+    assertNull(loader.getResource("data/missing.txt"));
+    assertEquals(Set.of("data/missing.txt"), loader.missingResources);
+    try {
+      loader.loadClass("com.example.Missing");
+      fail("expected ClassNotFoundException");
+    } catch (ClassNotFoundException expected) {
+      assertTrue(loader.missingClasses.contains("com.example.Missing"));
+    }
+  }
+
+  @Test
+  public void testClassDefinedAfterAMiss() throws Exception {
+    var loader = new JarClassLoader(ClassLoader.getPlatformClassLoader(), libs().toURI().toString()) {
+      // what a subclass generating classes might do
+      Class<?> define(String name, byte[] bytes) {
+        return defineClass(name, bytes, 0, bytes.length);
+      }
+    };
+    loader.missingClasses = ConcurrentHashMap.newKeySet();
+    loader.load(null);
+    try {
+      loader.loadClass(Probe.class.getName());
+      fail("expected ClassNotFoundException");
+    } catch (ClassNotFoundException expected) {
+      assertTrue(loader.missingClasses.contains(Probe.class.getName()));
+    }
+    Class<?> defined = loader.define(Probe.class.getName(), probe());
+    assertSame(defined, loader.loadClass(Probe.class.getName()));
+    assertFalse(loader.missingClasses.contains(Probe.class.getName()));
+  }
+
+  @Test
+  public void testMissCacheBounded() throws Exception {
+    JarClassLoader loader = load(libs());
+    Set<String> misses = ConcurrentHashMap.newKeySet();
+    for (int i = 0; i < JarClassLoader.MISS_CACHE_SIZE; i++) {
+      loader.recordMiss(misses, "data/missing" + i);
+    }
+    assertEquals(JarClassLoader.MISS_CACHE_SIZE, misses.size());
+    // cleared rather than grown when full
+    loader.recordMiss(misses, "data/one-more");
+    assertEquals(Set.of("data/one-more"), misses);
+  }
+}
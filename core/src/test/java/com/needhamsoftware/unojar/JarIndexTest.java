@@ -0,0 +1,115 @@
+package com.needhamsoftware.unojar;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+public class JarIndexTest extends TestCase {
+
+  private static JarIndex roundTrip(JarIndex index) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    index.write(baos);
+    return JarIndex.read(new ByteArrayInputStream(baos.toByteArray()));
+  }
+
+  private static long crc(byte[] bytes) {
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    return crc.getValue();
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    byte[] a = new Jars().add("a/one.txt", "one").add("a/two.txt", "two").toBytes();
+    byte[] b = new Jars().add("b.txt", "bee").stored().toBytes();
+    JarIndex index = new JarIndex();
+    index.add("lib/a.jar", a.length, crc(a), new ZipDirectory(ByteBuffer.wrap(a)).getEntries());
+    index.add("lib/b.jar", b.length, crc(b), new ZipDirectory(ByteBuffer.wrap(b)).getEntries());
+
+    JarIndex read = roundTrip(index);
+    List<String> names = new ArrayList<>();
+    for (JarIndex.Jar jar : read.getJars()) {
+      names.add(jar.name);
+    }
+    assertEquals(List.of("lib/a.jar", "lib/b.jar"), names);
+
+    JarIndex.Jar jar = read.getJar("lib/a.jar");
+    assertTrue(jar.matches(a.length, crc(a)));
+    assertFalse(jar.matches(a.length, crc(b)));
+    assertEquals(2, jar.entries.size());
+    // the indexed entries locate the content without reading the central directory
+    ZipDirectory zip = new ZipDirectory(ByteBuffer.wrap(a), jar.entries);
+    assertEquals("two", new String(zip.read(zip.getEntry("a/two.txt")), StandardCharsets.UTF_8));
+
+    ZipDirectory.Entry stored = read.getJar("lib/b.jar").entries.get(0);
+    ZipDirectory.Entry original = new ZipDirectory(ByteBuffer.wrap(b)).getEntries().get(0);
+    assertEquals(original.name, stored.name);
+    assertEquals(original.method, stored.method);
+    assertEquals(original.crc, stored.crc);
+    assertEquals(original.compressedSize, stored.compressedSize);
+    assertEquals(original.size, stored.size);
+    assertEquals(original.headerOffset, stored.headerOffset);
+    assertNull(read.getJar("lib/c.jar"));
+  }
+
+  @Test
+  public void testEmpty() throws Exception {
+    assertTrue(roundTrip(new JarIndex()).isEmpty());
+  }
+
+  @Test
+  public void testNotAnIndex() {
+    try {
+      JarIndex.read(new ByteArrayInputStream("not an index".getBytes(StandardCharsets.UTF_8)));
+      fail("expected IOException");
+    } catch (IOException expected) {
+      assertEquals("not an uno-jar index", expected.getMessage());
+    }
+  }
+
+  @Test
+  public void testUnsupportedVersion() throws Exception {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(baos);
+    out.writeInt(0x554a4958);
+    out.writeInt(99);
+    out.writeInt(0);
+    try {
+      JarIndex.read(new ByteArrayInputStream(baos.toByteArray()));
+      fail("expected IOException");
+    } catch (IOException expected) {
+      assertEquals("unsupported uno-jar index version 99", expected.getMessage());
+    }
+  }
+
+  @Test
+  public void testDamagedCounts() throws Exception {
+    for (int count : new int[]{-1, Integer.MAX_VALUE}) {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(baos);
+      out.writeInt(0x554a4958);
+      out.writeInt(1);
+      out.writeInt(1);
+      out.writeUTF("lib/a.jar");
+      out.writeLong(10);
+      out.writeLong(20);
+      out.writeInt(count);
+      // a damaged count fails the read, neither running out of memory nor throwing anything but an IOException
+      try {
+        JarIndex.read(new ByteArrayInputStream(baos.toByteArray()));
+        fail("expected IOException");
+      } catch (IOException expected) {
+        // ok
+      }
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package com.needhamsoftware.unojar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+/**
+ * Builds jars and uno-jars for the tests.
+ */
+public class Jars {
+
+  private final Map<String, byte[]> entries = new LinkedHashMap<>();
+  private boolean stored;
+
+  public Jars add(String name, String content) {
+    return add(name, content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  public Jars add(String name, Jars nested) throws IOException {
+    return add(name, nested.toBytes());
+  }
+
+  public Jars add(String name, byte[] content) {
+    entries.put(name, content);
+    return this;
+  }
+
+  /**
+   * Store entries without compression, as UnoJarTask does for nested jars when storeJars is set.
+   */
+  public Jars stored() {
+    stored = true;
+    return this;
+  }
+
+  public byte[] toBytes() throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    try (JarOutputStream out = new JarOutputStream(baos)) {
+      for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+        ZipEntry ze = new ZipEntry(entry.getKey());
+        if (stored) {
+          CRC32 crc = new CRC32();
+          crc.update(entry.getValue());
+          ze.setMethod(ZipEntry.STORED);
+          ze.setSize(entry.getValue().length);
+          ze.setCompressedSize(entry.getValue().length);
+          ze.setCrc(crc.getValue());
+        }
+        out.putNextEntry(ze);
+        out.write(entry.getValue());
+        out.closeEntry();
+      }
+    }
+    return baos.toByteArray();
+  }
+
+  public File write(File file) throws IOException {
+    Files.write(file.toPath(), toBytes());
+    return file;
+  }
+
+  /**
+   * @return a new temporary directory, deleted by {@link #delete(File)}
+   */
+  public static File tempDir() throws IOException {
+    return Files.createTempDirectory("unojar-test").toFile();
+  }
+
+  public static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
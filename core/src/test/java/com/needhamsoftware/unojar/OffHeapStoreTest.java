@@ -0,0 +1,70 @@
+package com.needhamsoftware.unojar;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.charset.StandardCharsets;
+
+public class OffHeapStoreTest extends TestCase {
+
+  private static String string(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testPutCopiesIntoDirectMemory() {
+    OffHeapStore store = new OffHeapStore(1024);
+    byte[] bytes = "hello".getBytes(StandardCharsets.UTF_8);
+    ByteBuffer buffer = store.put(bytes);
+    bytes[0] = 'j';
+    assertTrue(buffer.isDirect());
+    assertTrue(buffer.isReadOnly());
+    assertEquals(0, buffer.position());
+    assertEquals("hello", string(buffer));
+    try {
+      buffer.put(0, (byte) 'x');
+      fail("expected ReadOnlyBufferException");
+    } catch (ReadOnlyBufferException expected) {
+      // callers can't modify the store
+    }
+  }
+
+  @Test
+  public void testSmallEntriesShareChunks() {
+    OffHeapStore store = new OffHeapStore(1024);
+    ByteBuffer a = store.put("aaaa".getBytes(StandardCharsets.UTF_8));
+    ByteBuffer b = store.put("bbbbbb".getBytes(StandardCharsets.UTF_8));
+    assertEquals("aaaa", string(a));
+    assertEquals("bbbbbb", string(b));
+    assertEquals(1024, store.getAllocated());
+    assertEquals(10, store.getUsed());
+  }
+
+  @Test
+  public void testNewChunkWhenFull() {
+    OffHeapStore store = new OffHeapStore(64);
+    ByteBuffer first = null;
+    for (int i = 0; i < 10; i++) {
+      ByteBuffer buffer = store.put(("entry" + i + "!").getBytes(StandardCharsets.UTF_8));
+      if (first == null) {
+        first = buffer;
+      }
+    }
+    assertEquals("entry0!", string(first));
+    assertEquals(128, store.getAllocated());
+    assertEquals(70, store.getUsed());
+  }
+
+  @Test
+  public void testLargeEntriesGetTheirOwnBuffer() {
+    OffHeapStore store = new OffHeapStore(64);
+    store.put(new byte[8]);
+    store.put(new byte[100]);
+    assertEquals(64 + 100, store.getAllocated());
+    assertEquals(108, store.getUsed());
+  }
+}
@@ -0,0 +1,74 @@
+package com.needhamsoftware.unojar;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+public class RecorderTest extends TestCase {
+
+  private static List<Recorder.Event> roundTrip(boolean jarNames, String[]... events) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    try (Recorder recorder = new Recorder(baos, jarNames)) {
+      for (String[] event : events) {
+        recorder.record(event[0], event[1], event[2]);
+      }
+    }
+    String profile = baos.toString(StandardCharsets.UTF_8);
+    assertTrue(profile.startsWith(Recorder.HEADER + "\n"));
+    return Recorder.read(new ByteArrayInputStream(baos.toByteArray()));
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    List<Recorder.Event> events = roundTrip(false,
+        new String[]{Recorder.CLASS, "com/example/Main.class", "main/main.jar"},
+        new String[]{Recorder.RESOURCE, "data/a.txt", "lib/a.jar"});
+    assertEquals(2, events.size());
+    Recorder.Event first = events.get(0);
+    assertEquals(Recorder.CLASS, first.kind);
+    assertEquals("com/example/Main.class", first.name);
+    assertEquals("main/main.jar", first.jar);
+    assertEquals(Thread.currentThread().getName(), first.thread);
+    assertTrue(first.millis >= 0);
+    assertEquals(Recorder.RESOURCE, events.get(1).kind);
+    assertEquals("data/a.txt", events.get(1).name);
+    assertEquals("lib/a.jar", events.get(1).jar);
+  }
+
+  @Test
+  public void testFirstUseOnly() throws Exception {
+    String[] a = {Recorder.RESOURCE, "data/shared.txt", "lib/a.jar"};
+    String[] b = {Recorder.RESOURCE, "data/shared.txt", "lib/b.jar"};
+    assertEquals(1, roundTrip(false, a, b, a).size());
+    // once per jar when jar names are kept
+    List<Recorder.Event> events = roundTrip(true, a, b, a);
+    assertEquals(2, events.size());
+    assertEquals("lib/a.jar", events.get(0).jar);
+    assertEquals("lib/b.jar", events.get(1).jar);
+  }
+
+  @Test
+  public void testSeparatorsAreReplaced() throws Exception {
+    List<Recorder.Event> events = roundTrip(false, new String[]{Recorder.RESOURCE, "odd\tname\n.txt", null});
+    assertEquals(1, events.size());
+    assertEquals("odd name .txt", events.get(0).name);
+    assertEquals("", events.get(0).jar);
+  }
+
+  @Test
+  public void testInvalidProfile() {
+    for (String profile : new String[]{"1\tmain\tclass\tA.class\n", "x\tmain\tclass\tA.class\t/\n"}) {
+      try {
+        Recorder.read(new ByteArrayInputStream(profile.getBytes(StandardCharsets.UTF_8)));
+        fail("expected IOException for " + profile);
+      } catch (IOException expected) {
+        assertTrue(expected.getMessage().startsWith("invalid profile line"));
+      }
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package com.needhamsoftware.unojar;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+public class ServiceIndexTest extends TestCase {
+
+  private static ByteArrayInputStream stream(String s) {
+    return new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testParse() throws Exception {
+    List<String> names = ServiceIndex.parse(stream("# providers\n  com.example.A  \ncom.example.B # the other one\n\ncom.example.A\n"));
+    assertEquals(List.of("com.example.A", "com.example.B"), names);
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    ServiceIndex index = new ServiceIndex();
+    index.add("com.example.Service", "lib/a.jar", List.of("com.example.A", "com.example.B"));
+    index.add("com.example.Service", "lib/b.jar", List.of("com.example.B", "com.example.C"));
+    index.add("com.example.Other", "lib/b.jar", List.of("com.example.D"));
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    index.write(baos);
+    ServiceIndex read = ServiceIndex.read(new ByteArrayInputStream(baos.toByteArray()));
+
+    List<ServiceIndex.Provider> providers = read.getProviders("com.example.Service");
+    assertEquals(4, providers.size());
+    assertEquals("lib/a.jar", providers.get(0).jar);
+    assertEquals("com.example.A", providers.get(0).className);
+    assertEquals("lib/b.jar", providers.get(3).jar);
+    assertEquals("com.example.C", providers.get(3).className);
+    // each provider once, in the order ServiceLoader would find them
+    assertEquals(List.of("com.example.A", "com.example.B", "com.example.C"), read.getProviderNames("com.example.Service"));
+    assertEquals(List.of("com.example.D"), read.getProviderNames("com.example.Other"));
+    assertTrue(read.getProviders("com.example.Missing").isEmpty());
+    assertTrue(new ServiceIndex().isEmpty());
+  }
+
+  @Test
+  public void testNotAnIndex() {
+    try {
+      ServiceIndex.read(stream("not an index"));
+      fail("expected IOException");
+    } catch (IOException expected) {
+      assertEquals("not an uno-jar service index", expected.getMessage());
+    }
+  }
+}
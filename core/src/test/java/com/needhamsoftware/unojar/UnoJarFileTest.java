@@ -0,0 +1,83 @@
+package com.needhamsoftware.unojar;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+public class UnoJarFileTest extends TestCase {
+
+  private File dir;
+
+  protected void setUp() throws Exception {
+    dir = Jars.tempDir();
+  }
+
+  protected void tearDown() {
+    Jars.delete(dir);
+  }
+
+  private String unoJar(boolean stored) throws Exception {
+    Jars jars = new Jars().add("lib/a.jar", new Jars().add("data/a.txt", "a").add("data/b.txt", "bee"));
+    return (stored ? jars.stored() : jars).write(new File(dir, "test.jar")).getPath();
+  }
+
+  private static String read(JarFile jar, JarEntry entry) throws Exception {
+    try (InputStream in = jar.getInputStream(entry)) {
+      return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    }
+  }
+
+  private void checkNestedJar(String path) throws Exception {
+    try (UnoJarFile jar = new UnoJarFile(path, "lib/a.jar", "data/b.txt")) {
+      assertNotNull(jar.directory);
+      assertEquals(2, jar.size());
+      List<String> names = new ArrayList<>();
+      for (JarEntry entry : Collections.list(jar.entries())) {
+        names.add(entry.getName());
+      }
+      assertEquals(List.of("data/a.txt", "data/b.txt"), names);
+
+      JarEntry entry = jar.getJarEntry("lib/a.jar!/data/b.txt");
+      assertEquals("data/b.txt", entry.getName());
+      assertEquals(3, entry.getSize());
+      assertEquals("bee", read(jar, entry));
+      assertNull(jar.getJarEntry("lib/a.jar!/data/missing.txt"));
+
+      // a nested jar without a manifest has an empty one
+      JarEntry manifest = jar.getJarEntry("lib/a.jar!/" + JarFile.MANIFEST_NAME);
+      assertNotNull(manifest);
+      try (InputStream in = jar.getInputStream(manifest)) {
+        assertNull(new Manifest(in).getMainAttributes().getValue(Attributes.Name.MAIN_CLASS));
+      }
+    }
+  }
+
+  @Test
+  public void testStoredNestedJar() throws Exception {
+    checkNestedJar(unoJar(true));
+  }
+
+  @Test
+  public void testCompressedNestedJar() throws Exception {
+    checkNestedJar(unoJar(false));
+  }
+
+  @Test
+  public void testDirectoryShared() throws Exception {
+    String path = unoJar(true);
+    try (UnoJarFile first = new UnoJarFile(path, "lib/a.jar", "data/a.txt");
+         UnoJarFile second = new UnoJarFile(path, "lib/a.jar", "data/b.txt")) {
+      assertSame(first.directory, second.directory);
+    }
+  }
+}
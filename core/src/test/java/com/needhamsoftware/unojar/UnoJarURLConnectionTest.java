@@ -0,0 +1,85 @@
+package com.needhamsoftware.unojar;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.jar.JarFile;
+
+public class UnoJarURLConnectionTest extends TestCase {
+
+  private File dir;
+  private ClassLoader context;
+  private JarClassLoader loader;
+
+  protected void setUp() throws Exception {
+    dir = Jars.tempDir();
+    context = Thread.currentThread().getContextClassLoader();
+    File unoJar = new Jars()
+        .add("data/top.txt", "top")
+        .add("lib/a.jar", new Jars().add("data/a.txt", "a"))
+        .write(new File(dir, "test.jar"));
+    loader = new JarClassLoader(ClassLoader.getPlatformClassLoader(), unoJar.toURI().toString());
+    loader.load(null);
+  }
+
+  protected void tearDown() {
+    Thread.currentThread().setContextClassLoader(context);
+    Jars.delete(dir);
+  }
+
+  private static String read(URLConnection connection) throws Exception {
+    try (InputStream in = connection.getInputStream()) {
+      return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    }
+  }
+
+  @Test
+  public void testServedFromTheLoader() throws Exception {
+    URL url = loader.findResource("data/a.txt");
+    assertEquals("jar", url.getProtocol());
+    URLConnection connection = url.openConnection();
+    assertTrue(connection instanceof UnoJarURLConnection);
+    // not connected yet, so caching can still be turned off
+    connection.setUseCaches(false);
+    assertEquals(1, connection.getContentLength());
+    assertEquals(1, connection.getContentLengthLong());
+    assertEquals("a", read(connection));
+  }
+
+  @Test
+  public void testTopLevelEntry() throws Exception {
+    URLConnection connection = loader.findResource("data/top.txt").openConnection();
+    assertEquals(3, connection.getContentLengthLong());
+    assertEquals("top", read(connection));
+  }
+
+  @Test
+  public void testEachConnectionReads() throws Exception {
+    URL url = loader.findResource("data/a.txt");
+    for (int i = 0; i < 3; i++) {
+      assertEquals("a", read(url.openConnection()));
+    }
+  }
+
+  @Test
+  public void testSharedJarFilesPerUnoJar() throws Exception {
+    File other = new Jars()
+        .add("lib/a.jar", new Jars().add("data/a.txt", "other a"))
+        .write(new File(dir, "other.jar"));
+    JarClassLoader otherLoader = new JarClassLoader(ClassLoader.getPlatformClassLoader(), other.toURI().toString());
+    otherLoader.load(null);
+    // both uno-jars hold a lib/a.jar, each must be read from its own uno-jar
+    JarFile jar = ((UnoJarURLConnection) loader.findResource("data/a.txt").openConnection()).getJarFile();
+    JarFile otherJar = ((UnoJarURLConnection) otherLoader.findResource("data/a.txt").openConnection()).getJarFile();
+    assertNotSame(jar, otherJar);
+    assertEquals(new File(dir, "test.jar").getPath(), jar.getName());
+    assertEquals(other.getPath(), otherJar.getName());
+    // and shared between connections to the same uno-jar
+    assertSame(jar, ((UnoJarURLConnection) loader.findResource("data/a.txt").openConnection()).getJarFile());
+  }
+}
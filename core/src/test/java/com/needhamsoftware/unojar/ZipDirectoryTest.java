@@ -0,0 +1,127 @@
+package com.needhamsoftware.unojar;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.zip.ZipEntry;
+
+public class ZipDirectoryTest extends TestCase {
+
+  private static byte[] sample(Jars jars) throws IOException {
+    return jars.add("a/b.txt", "hello").add("c.txt", "world world world world").toBytes();
+  }
+
+  private static String string(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  // offset of the central directory header of the first entry, read from the end of central directory
+  // record which ends the zip since it has no comment
+  private static int firstCentralHeader(byte[] zip) {
+    return ByteBuffer.wrap(zip).order(ByteOrder.LITTLE_ENDIAN).getInt(zip.length - 22 + 16);
+  }
+
+  @Test
+  public void testReadDeflated() throws Exception {
+    ZipDirectory dir = new ZipDirectory(ByteBuffer.wrap(sample(new Jars())));
+    assertEquals(Arrays.asList("a/b.txt", "c.txt").toString(), dir.getEntries().toString());
+    ZipDirectory.Entry entry = dir.getEntry("a/b.txt");
+    assertEquals(ZipEntry.DEFLATED, entry.method);
+    assertEquals(5, entry.size);
+    assertEquals("hello", new String(dir.read(entry), StandardCharsets.UTF_8));
+    assertEquals("world world world world", string(dir.getBuffer(dir.getEntry("c.txt"))));
+    assertNull(dir.getEntry("missing"));
+  }
+
+  @Test
+  public void testStoredEntriesAreNotCopied() throws Exception {
+    ZipDirectory dir = new ZipDirectory(toDirect(sample(new Jars().stored())));
+    ZipDirectory.Entry entry = dir.getEntry("a/b.txt");
+    assertEquals(ZipEntry.STORED, entry.method);
+    ByteBuffer buffer = dir.getBuffer(entry);
+    assertTrue(buffer.isReadOnly());
+    assertTrue("a stored entry is a view of the zip", buffer.isDirect());
+    assertEquals("hello", string(buffer));
+  }
+
+  private static ByteBuffer toDirect(byte[] bytes) {
+    ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+    direct.put(bytes).flip();
+    return direct;
+  }
+
+  @Test
+  public void testEntriesFromIndex() throws Exception {
+    byte[] zip = sample(new Jars());
+    ZipDirectory scanned = new ZipDirectory(ByteBuffer.wrap(zip));
+    ZipDirectory indexed = new ZipDirectory(ByteBuffer.wrap(zip), scanned.getEntries());
+    assertEquals("hello", new String(indexed.read(indexed.getEntry("a/b.txt")), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testNotAZip() {
+    try {
+      new ZipDirectory(ByteBuffer.wrap("not a zip at all".getBytes(StandardCharsets.UTF_8)));
+      fail("expected IOException");
+    } catch (IOException expected) {
+      // fall back to stream processing
+    }
+  }
+
+  @Test
+  public void testTruncated() throws Exception {
+    byte[] zip = sample(new Jars());
+    try {
+      new ZipDirectory(ByteBuffer.wrap(Arrays.copyOf(zip, zip.length / 2)));
+      fail("expected IOException");
+    } catch (IOException expected) {
+      // fall back to stream processing
+    }
+  }
+
+  @Test
+  public void testHeaderOffsetOutOfRange() throws Exception {
+    byte[] zip = sample(new Jars());
+    int cen = firstCentralHeader(zip);
+    ByteBuffer.wrap(zip).order(ByteOrder.LITTLE_ENDIAN).putInt(cen + 42, 0x7fffff00);
+    try {
+      new ZipDirectory(ByteBuffer.wrap(zip));
+      fail("expected IOException");
+    } catch (IOException expected) {
+      // not IndexOutOfBoundsException
+    }
+  }
+
+  @Test
+  public void testNameLengthOutOfRange() throws Exception {
+    byte[] zip = sample(new Jars());
+    int cen = firstCentralHeader(zip);
+    ByteBuffer.wrap(zip).order(ByteOrder.LITTLE_ENDIAN).putShort(cen + 28, (short) 0xfff0);
+    try {
+      new ZipDirectory(ByteBuffer.wrap(zip));
+      fail("expected IOException");
+    } catch (IOException expected) {
+      // not IndexOutOfBoundsException
+    }
+  }
+
+  @Test
+  public void testIndexedEntryOutOfRange() throws Exception {
+    ZipDirectory.Entry bogus = new ZipDirectory.Entry("x", ZipEntry.STORED, 0, 1, 1, 1_000_000);
+    ZipDirectory dir = new ZipDirectory(ByteBuffer.wrap(sample(new Jars())), Collections.singletonList(bogus));
+    try {
+      dir.read(bogus);
+      fail("expected IOException");
+    } catch (IOException expected) {
+      // not IndexOutOfBoundsException
+    }
+  }
+}
@@ -47,7 +47,12 @@ class UnoJarPlugin implements Plugin<Project> {
         mf.addConfiguredAttribute(new Manifest.Attribute("Uno-Jar-Main-Class", extension.appMainClass))
         def mff = Files.createTempFile("unojar", "mf")
         mff.write "" + mf;
-        ant.unojar(destFile: extension.unoJar, manifest: mff) {
+        def attrs = [destFile: extension.unoJar, manifest: mff]
+        if (extension.profile) {
+          // a profile recorded with -Duno-jar.record=true, used to order jars and entries by first use
+          attrs.profile = project.file(extension.profile)
+        }
+        ant.unojar(attrs) {
           main extension.appFiles
           lib extension.depLibs
           // note that we can't use a mainfest {} closure here because gradle creates a Gradle Manifest not an Ant
@@ -64,5 +69,6 @@ class UnoJarExtension {
   String unoJar
   Object appFiles
   Object depLibs
+  Object profile
   String repoUrl = 'https://repo.maven.apache.org/maven2' // default
 }
@@ -3,6 +3,12 @@ package com.needhamsoftware.unojar;
 import junit.framework.TestCase;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
 public class CommandLine extends TestCase {
 
   @Test
@@ -13,6 +19,125 @@ public class CommandLine extends TestCase {
     assertEquals("System Err Success - library class", result.err.get(0));
   }
 
+  @Test
+  public void testUnoJarLazySmoke() throws Exception {
+    Invoker.Result result = Invoker.run("java -Duno-jar.lazy=true -jar build/testjar1.jar");
+    assertEquals("Expected failure did not occur: " + result, 0, result.status);
+    assertEquals( "System Out Success - main class", result.out.get(0));
+    assertEquals("System Err Success - library class", result.err.get(0));
+  }
+
+  @Test
+  public void testUnoJarMappedSmoke() throws Exception {
+    Invoker.Result result = Invoker.run("java -Duno-jar.mmap=true -jar build/testjar1.jar");
+    assertEquals("Expected failure did not occur: " + result, 0, result.status);
+    assertEquals( "System Out Success - main class", result.out.get(0));
+    assertEquals("System Err Success - library class", result.err.get(0));
+  }
+
+  @Test
+  public void testUnoJarParallelSmoke() throws Exception {
+    Invoker.Result result = Invoker.run("java -Duno-jar.parallel=true -jar build/testLog4j.jar");
+    assertEquals("Expected failure did not occur: " + result, 0, result.status);
+    assertEquals( "TEST:  ERROR [main] TestMainLog4jPlugin   - Log4j Success - main class", result.out.get(0));
+    assertEquals("TEST:  ERROR [main] LibTestLog4jPlugin   - Log4J Success - library class", result.out.get(1));
+  }
+
+  @Test
+  public void testUnoJarOffHeapSmoke() throws Exception {
+    Invoker.Result result = Invoker.run("java -Duno-jar.offheap=true -jar build/testjar1.jar");
+    assertEquals("Expected failure did not occur: " + result, 0, result.status);
+    assertEquals( "System Out Success - main class", result.out.get(0));
+    assertEquals("System Err Success - library class", result.err.get(0));
+  }
+
+  @Test
+  public void testUnoJarReleaseSmoke() throws Exception {
+    Invoker.Result result = Invoker.run("java -Duno-jar.release=true -jar build/testjar1.jar");
+    assertEquals("Expected failure did not occur: " + result, 0, result.status);
+    assertEquals( "System Out Success - main class", result.out.get(0));
+    assertEquals("System Err Success - library class", result.err.get(0));
+  }
+
+  @Test
+  public void testUnoJarIndexedSmoke() throws Exception {
+    Invoker.Result result = Invoker.run("java -Duno-jar.lazy=true -Duno-jar.mmap=true -jar build/testIndexed.jar");
+    assertEquals("Expected failure did not occur: " + result, 0, result.status);
+    assertEquals( "System Out Success - main class", result.out.get(0));
+    assertEquals("System Err Success - library class", result.err.get(0));
+  }
+
+  @Test
+  public void testUnoJarExpandDirIndexCache() throws Exception {
+    File index = new File("build/expand/index");
+    File[] old = index.listFiles();
+    if (old != null) {
+      for (File file : old) {
+        file.delete();
+      }
+    }
+    // the first run caches an index of the nested jars, the second reads it
+    for (int run = 0; run < 2; run++) {
+      Invoker.Result result = Invoker.run("java -Duno-jar.mmap=true -Duno-jar.expand.dir=build/expand -jar build/testUnindexed.jar");
+      assertEquals("Expected failure did not occur: " + result, 0, result.status);
+      assertEquals( "System Out Success - main class", result.out.get(0));
+      assertEquals("System Err Success - library class", result.err.get(0));
+      assertEquals(1, index.listFiles().length);
+    }
+  }
+
+  @Test
+  public void testUnoJarRecordFile() throws Exception {
+    File profile = new File("build/testjar1-profile.tsv");
+    profile.delete();
+    Invoker.Result result = Invoker.run("java -Duno-jar.record=true -Duno-jar.record.file=build/testjar1-profile.tsv -jar build/testjar1.jar");
+    assertEquals("Expected failure did not occur: " + result, 0, result.status);
+    assertEquals( "System Out Success - main class", result.out.get(0));
+    assertEquals("System Err Success - library class", result.err.get(0));
+    List<String> classes = new ArrayList<>();
+    try (InputStream is = new FileInputStream(profile)) {
+      for (Recorder.Event event : Recorder.read(is)) {
+        if (Recorder.CLASS.equals(event.kind)) {
+          classes.add(event.name);
+        }
+      }
+    }
+    assertEquals("com/needhamsoftware/unojar/TestMain.class", classes.get(0));
+    assertEquals("com/needhamsoftware/unojar/LibTest.class", classes.get(1));
+  }
+
+  @Test
+  public void testUnoJarBackgroundSmoke() throws Exception {
+    Invoker.Result result = Invoker.run("java -Duno-jar.background=true -jar build/testIndexed.jar");
+    assertEquals("Expected failure did not occur: " + result, 0, result.status);
+    assertEquals( "System Out Success - main class", result.out.get(0));
+    assertEquals("System Err Success - library class", result.err.get(0));
+  }
+
+  @Test
+  public void testUnoJarServiceIndex() throws Exception {
+    Invoker.Result result = Invoker.run("java -jar build/testServices.jar");
+    assertEquals("Expected failure did not occur: " + result, 0, result.status);
+    assertEquals("Indexed providers: [com.needhamsoftware.unojar.LibTestService]", result.out.get(0));
+    assertEquals("System Err Success - service provider", result.err.get(0));
+  }
+
+  @Test
+  public void testUnoJarMissCacheSmoke() throws Exception {
+    Invoker.Result result = Invoker.run("java -Duno-jar.miss.cache=true -jar build/testLog4j.jar");
+    assertEquals("Expected failure did not occur: " + result, 0, result.status);
+    assertEquals( "TEST:  ERROR [main] TestMainLog4jPlugin   - Log4j Success - main class", result.out.get(0));
+    assertEquals("TEST:  ERROR [main] LibTestLog4jPlugin   - Log4J Success - library class", result.out.get(1));
+  }
+
+  @Test
+  public void testUnoJarDelegationSmoke() throws Exception {
+    Invoker.Result result = Invoker.run("java -Duno-jar.delegation=org.apache.logging.*=local -jar build/testLog4j.jar");
+    assertEquals("Expected failure did not occur: " + result, 0, result.status);
+    assertEquals( "TEST:  ERROR [main] TestMainLog4jPlugin   - Log4j Success - main class", result.out.get(0));
+    assertEquals("TEST:  ERROR [main] LibTestLog4jPlugin   - Log4J Success - library class", result.out.get(1));
+  }
+
   @Test
   public void testUnoJarGradleTaskSmoke2() throws Exception {
     Invoker.Result result = Invoker.run("java -jar build/testJar2.jar");
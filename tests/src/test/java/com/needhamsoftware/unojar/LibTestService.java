@@ -0,0 +1,7 @@
+package com.needhamsoftware.unojar;
+
+public class LibTestService implements Runnable {
+  public void run() {
+    System.err.println("System Err Success - service provider");
+  }
+}
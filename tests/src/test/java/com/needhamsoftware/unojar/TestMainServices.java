@@ -0,0 +1,13 @@
+package com.needhamsoftware.unojar;
+
+import java.util.ServiceLoader;
+
+public class TestMainServices {
+  public static void main(String[] args) {
+    JarClassLoader loader = (JarClassLoader) TestMainServices.class.getClassLoader();
+    System.out.println("Indexed providers: " + loader.getServiceProviders(Runnable.class.getName()));
+    for (Runnable service : ServiceLoader.load(Runnable.class, loader)) {
+      service.run();
+    }
+  }
+}